@@ -0,0 +1,215 @@
+/**
+ * FoundationDB Lucene Layer
+ * Copyright (c) 2013 FoundationDB, LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.foundationdb.lucene;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process wide, LRU cache of pages read from closed, and therefore immutable, {@link FDBDirectory} files.
+ *
+ * <p>
+ * Pages are held off-heap in direct buffers and keyed by file and page offset. The file key identifies the
+ * directory subspace, data ID and checksum so a data ID reused after an aborted transaction never sees a stale page.
+ * </p>
+ */
+public class FDBBlockCache
+{
+    static final String CONFIG_PROP_MAX_BYTES = "FDBBlockCache.maxBytes";
+    static final long DEFAULT_MAX_BYTES = 64 * 1024 * 1024;
+
+    private static final FDBBlockCache DEFAULT_INSTANCE = new FDBBlockCache(
+            Long.getLong(CONFIG_PROP_MAX_BYTES, DEFAULT_MAX_BYTES)
+    );
+
+    private final LinkedHashMap<PageKey, ByteBuffer> pages = new LinkedHashMap<PageKey, ByteBuffer>(16, 0.75f, true);
+    /** Cached page offsets of each file, so a file can be invalidated without walking every page. */
+    private final Map<FileKey, Set<Long>> fileOffsets = new HashMap<FileKey, Set<Long>>();
+    private final long maxBytes;
+    private long usedBytes = 0;
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+
+
+    public FDBBlockCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /** The shared instance, sized by the <code>FDBBlockCache.maxBytes</code> system property. */
+    public static FDBBlockCache getDefault() {
+        return DEFAULT_INSTANCE;
+    }
+
+    /** Copy of the page at <code>offset</code> in <code>fileKey</code> or <code>null</code> if not cached. */
+    public byte[] get(byte[] fileKey, long offset) {
+        ByteBuffer buffer;
+        synchronized(this) {
+            buffer = pages.get(new PageKey(new FileKey(fileKey), offset));
+        }
+        if(buffer == null) {
+            missCount.incrementAndGet();
+            return null;
+        }
+        hitCount.incrementAndGet();
+        byte[] page = new byte[buffer.capacity()];
+        buffer.duplicate().get(page);
+        return page;
+    }
+
+    public void put(byte[] fileKey, long offset, byte[] page) {
+        if(page.length > maxBytes) {
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(page.length);
+        buffer.put(page);
+        buffer.flip();
+        FileKey file = new FileKey(fileKey);
+        synchronized(this) {
+            ByteBuffer prev = pages.put(new PageKey(file, offset), buffer);
+            usedBytes += buffer.capacity() - ((prev != null) ? prev.capacity() : 0);
+            Set<Long> offsets = fileOffsets.get(file);
+            if(offsets == null) {
+                offsets = new HashSet<Long>();
+                fileOffsets.put(file, offsets);
+            }
+            offsets.add(offset);
+            Iterator<Map.Entry<PageKey, ByteBuffer>> it = pages.entrySet().iterator();
+            while(usedBytes > maxBytes && it.hasNext()) {
+                Map.Entry<PageKey, ByteBuffer> entry = it.next();
+                usedBytes -= entry.getValue().capacity();
+                it.remove();
+                removeOffset(entry.getKey());
+                evictionCount.incrementAndGet();
+            }
+        }
+    }
+
+    /** Remove all pages of <code>fileKey</code>. */
+    public synchronized void invalidate(byte[] fileKey) {
+        FileKey file = new FileKey(fileKey);
+        Set<Long> offsets = fileOffsets.remove(file);
+        if(offsets == null) {
+            return;
+        }
+        for(Long offset : offsets) {
+            ByteBuffer buffer = pages.remove(new PageKey(file, offset));
+            usedBytes -= buffer.capacity();
+        }
+    }
+
+    public synchronized void clear() {
+        pages.clear();
+        fileOffsets.clear();
+        usedBytes = 0;
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+
+    //
+    // Helpers
+    //
+
+    private void removeOffset(PageKey key) {
+        Set<Long> offsets = fileOffsets.get(key.file);
+        offsets.remove(key.offset);
+        if(offsets.isEmpty()) {
+            fileOffsets.remove(key.file);
+        }
+    }
+
+    private static final class FileKey
+    {
+        private final byte[] fileKey;
+        private final int hash;
+
+        public FileKey(byte[] fileKey) {
+            this.fileKey = fileKey;
+            this.hash = Arrays.hashCode(fileKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return (o instanceof FileKey) && Arrays.equals(fileKey, ((FileKey)o).fileKey);
+        }
+    }
+
+    private static final class PageKey
+    {
+        private final FileKey file;
+        private final long offset;
+        private final int hash;
+
+        public PageKey(FileKey file, long offset) {
+            this.file = file;
+            this.offset = offset;
+            this.hash = (31 * file.hash) + (int)(offset ^ (offset >>> 32));
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(!(o instanceof PageKey)) {
+                return false;
+            }
+            PageKey other = (PageKey)o;
+            return (offset == other.offset) && file.equals(other.file);
+        }
+    }
+}
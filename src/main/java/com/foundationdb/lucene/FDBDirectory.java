@@ -23,10 +23,14 @@
 
 package com.foundationdb.lucene;
 
+import com.apple.foundationdb.Database;
 import com.apple.foundationdb.KeyValue;
+import com.apple.foundationdb.MutationType;
+import com.apple.foundationdb.Range;
+import com.apple.foundationdb.ReadTransaction;
 import com.apple.foundationdb.Transaction;
-import com.apple.foundationdb.async.AsyncIterator;
 import com.apple.foundationdb.tuple.Tuple;
+import org.apache.lucene.index.IndexFileNames;
 import org.apache.lucene.store.Directory;
 import org.apache.lucene.store.IOContext;
 import org.apache.lucene.store.IndexInput;
@@ -34,28 +38,80 @@ import org.apache.lucene.store.IndexOutput;
 import org.apache.lucene.store.Lock;
 import org.apache.lucene.store.LockFactory;
 import org.apache.lucene.store.NoLockFactory;
-import org.apache.lucene.store.RAMFile;
 import org.apache.lucene.store.RAMInputStream;
-import org.apache.lucene.store.RAMOutputStream;
 
+import java.io.EOFException;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.NoSuchFileException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 public class FDBDirectory extends Directory
 {
     /** See {@link RAMInputStream#BUFFER_SIZE} */
     private static final int BUFFER_SIZE = 1024;
+    /** Logical (uncompressed) size of each chunk of a file written with {@link Compression#DEFLATE}. */
+    private static final int COMPRESSED_CHUNK_SIZE = 64 * 1024;
+    /** Header byte of a compressed file chunk stored as is, i.e. it didn't shrink. */
+    private static final byte CHUNK_RAW = 0;
+    /** Header byte of a compressed file chunk encoded with {@link Deflater}. */
+    private static final byte CHUNK_DEFLATE = 1;
+    /** Number of bytes, in whole chunks, fetched by each {@link Input} read. */
+    private static final int PAGE_SIZE = 8 * BUFFER_SIZE;
+    /** Maximum page size for inputs opened to read a whole file once. */
+    private static final int WHOLE_FILE_PAGE_SIZE = 16 * 1024 * 1024;
+    /** Page size for merge inputs, which always have the following page in flight. */
+    private static final int MERGE_PAGE_SIZE = 1024 * 1024;
+    /** Maximum number of concurrent range reads issued for a single page. */
+    private static final int PARALLEL_READS = 8;
+    /** Minimum number of bytes requested by each of those range reads. */
+    private static final int PARALLEL_READ_MIN_BYTES = 64 * 1024;
+    /** Maximum number of bytes written by each transaction of a staged output. */
+    private static final int STAGED_TXN_BYTES = 1024 * 1024;
+    /** Outputs are only staged outside of {@link #txn} once a threshold is set. */
+    public static final long DEFAULT_STAGED_WRITE_THRESHOLD = -1;
+    private static final byte[] LITTLE_ENDIAN_LONG_ONE = { 1, 0, 0, 0, 0, 0, 0, 0 };
 
     public Transaction txn;
     public final Tuple subspace;
     private final Tuple dirSubspace;
     private final Tuple dataSubspace;
+    private final Tuple stagingSubspace;
+    private final Tuple refSubspace;
+    private final byte[] namesGenKey;
+    private final byte[] commitGenKey;
+    private final HighContentionAllocator allocator;
+    private FDBBlockCache blockCache = FDBBlockCache.getDefault();
+    private FDBLocalCache localCache;
+    private long stagedWriteThreshold = DEFAULT_STAGED_WRITE_THRESHOLD;
+    private Compression compression = Compression.NONE;
     private LockFactory lockFactory;
+    private final Random namesGenRandom = new Random();
+    private final Set<Long> stagedDataIDs = new HashSet<Long>();
+    private Transaction stagedDataIDsTxn;
+    private TreeMap<String, FileMeta> nameCache;
+    private Transaction nameCacheTxn;
+    private long nameCacheGen;
 
 
     public FDBDirectory(String path, Transaction txn) {
@@ -74,6 +130,11 @@ public class FDBDirectory extends Directory
         this.subspace = subspace;
         this.dirSubspace = subspace.add(0);
         this.dataSubspace = subspace.add(1);
+        this.allocator = new HighContentionAllocator(subspace.add(2));
+        this.stagingSubspace = subspace.add(3);
+        this.refSubspace = subspace.add(4);
+        this.namesGenKey = subspace.add(5).pack();
+        this.commitGenKey = subspace.add(6).pack();
         try {
             setLockFactory(lockFactory);
         } catch(IOException e) {
@@ -81,57 +142,584 @@ public class FDBDirectory extends Directory
         }
     }
 
-    private class Output extends RAMOutputStream
+    /** Chunk layout of newly created files. */
+    public static enum Compression
+    {
+        /** Chunks hold the file bytes as is. */
+        NONE,
+        /** Larger chunks, each prefixed by a header byte and deflated when that makes them smaller. */
+        DEFLATE
+    }
+
+    /**
+     * Value of a directory entry, <code>(dataID, length, chunkSize, chunkCount, checksum, compressed, shared)</code>.
+     * Only <code>(dataID, -1, compressed)</code> is present until the output is closed. Shared is set on both names
+     * by {@link #copyFile}, as only then can the data have a reference count.
+     *
+     * <p>
+     * Directories written before entries held more than <code>(dataID)</code> have closed files of that form,
+     * uncompressed in {@link #BUFFER_SIZE} chunks. Their length is found from the last chunk, see
+     * {@link #getFileMeta}, and they have no checksum.
+     * </p>
+     */
+    private static class FileMeta
+    {
+        /** Checksum of files written before checksums were kept. */
+        private static final long LEGACY_CHECKSUM = -1;
+
+        public final long dataID;
+        public final long length;
+        public final int chunkSize;
+        public final long chunkCount;
+        public final long checksum;
+        public final boolean compressed;
+        public final boolean open;
+        public final boolean shared;
+
+        public FileMeta(long dataID, long length, int chunkSize, long chunkCount, long checksum, boolean compressed,
+                        boolean open, boolean shared) {
+            this.dataID = dataID;
+            this.length = length;
+            this.chunkSize = chunkSize;
+            this.chunkCount = chunkCount;
+            this.checksum = checksum;
+            this.compressed = compressed;
+            this.open = open;
+            this.shared = shared;
+        }
+
+        public static FileMeta fromValue(byte[] value) {
+            Tuple t = Tuple.fromBytes(value);
+            if(t.size() == 1) {
+                return new FileMeta(t.getLong(0), -1, BUFFER_SIZE, -1, LEGACY_CHECKSUM, false, false, false);
+            }
+            if(t.size() < 5) {
+                boolean compressed = (t.size() > 2) && Util.getBool(t, 2);
+                int chunkSize = compressed ? COMPRESSED_CHUNK_SIZE : BUFFER_SIZE;
+                return new FileMeta(t.getLong(0), -1, chunkSize, -1, -1, compressed, true, false);
+            }
+            boolean compressed = (t.size() > 5) && Util.getBool(t, 5);
+            boolean shared = (t.size() > 6) && Util.getBool(t, 6);
+            return new FileMeta(t.getLong(0), t.getLong(1), (int)t.getLong(2), t.getLong(3), t.getLong(4), compressed,
+                                false, shared);
+        }
+
+        public static byte[] toOpenValue(long dataID, boolean compressed) {
+            return Tuple.from(dataID, -1, compressed ? 1 : 0).pack();
+        }
+
+        public boolean isComplete() {
+            return !open;
+        }
+
+        /** A closed, legacy entry whose length wasn't known. */
+        public boolean isLengthUnknown() {
+            return !open && (length == -1);
+        }
+
+        public FileMeta withLength(long length) {
+            long chunkCount = (length + chunkSize - 1) / chunkSize;
+            return new FileMeta(dataID, length, chunkSize, chunkCount, checksum, compressed, false, shared);
+        }
+
+        public FileMeta asShared() {
+            return new FileMeta(dataID, length, chunkSize, chunkCount, checksum, compressed, open, true);
+        }
+
+        public byte[] toValue() {
+            return Tuple.from(dataID, length, chunkSize, chunkCount, checksum, compressed ? 1 : 0, shared ? 1 : 0)
+                        .pack();
+        }
+    }
+
+    /**
+     * Append only output. Each chunk is sent to the transaction as soon as it fills and only the tail is held.
+     *
+     * <p>
+     * A staged output instead writes its chunks through a series of bounded transactions of its own. Only the
+     * final directory entry goes through {@link #txn}, which publishes the file when that transaction commits.
+     * Each of those transactions also checks the staging record is still present, so an output whose data was
+     * removed by {@link #deleteAbandonedStagedFiles(long)} fails instead of writing chunks nobody will clear.
+     * </p>
+     *
+     * <p>
+     * A compressed output encodes each chunk with {@link #encodeChunk} as it is sent, including the partial tail.
+     * </p>
+     */
+    private class Output extends IndexOutput
     {
         private final String name;
         private final long dataID;
-        private boolean doingFlush = false;
+        private final Database stagingDB;
+        private final Deflater deflater;
+        private final byte[] buffer;
+        private final CRC32 checksum = new CRC32();
+        private final List<KeyValue> stagedChunks = new ArrayList<KeyValue>();
+        private int stagedBytes = 0;
+        private long bufferStart = 0;
+        private int bufferPos = 0;
+        private boolean closed = false;
 
-        public Output(String name, long dataID) {
+        public Output(String name, long dataID, Database stagingDB, boolean compressed) {
             this.name = name;
             this.dataID = dataID;
+            this.stagingDB = stagingDB;
+            this.deflater = compressed ? new Deflater(Deflater.BEST_SPEED) : null;
+            this.buffer = new byte[compressed ? COMPRESSED_CHUNK_SIZE : BUFFER_SIZE];
         }
 
         @Override
-        public void flush() {
-            if(doingFlush) {
-                return;
+        public void writeByte(byte b) throws IOException {
+            checksum.update(b);
+            buffer[bufferPos++] = b;
+            if(bufferPos == buffer.length) {
+                writeChunk();
             }
-            doingFlush = true;
-            try {
-                flushInternal();
-            } finally {
-                doingFlush = false;
+        }
+
+        @Override
+        public void writeBytes(byte[] b, int offset, int length) throws IOException {
+            checksum.update(b, offset, length);
+            while(length > 0) {
+                int toCopy = Math.min(length, buffer.length - bufferPos);
+                System.arraycopy(b, offset, buffer, bufferPos, toCopy);
+                bufferPos += toCopy;
+                offset += toCopy;
+                length -= toCopy;
+                if(bufferPos == buffer.length) {
+                    writeChunk();
+                }
             }
         }
 
-        private void flushInternal() {
-            try {
-                // Sets file length
-                super.flush();
-                byte[] outValue = new byte[(int)length()];
-                writeTo(outValue, 0);
-                Util.writeLargeValue(txn, dataSubspace.add(dataID), BUFFER_SIZE, outValue);
-            } catch(IOException e) {
-                throw new RuntimeException(e);
+        @Override
+        public void flush() throws IOException {
+            // Partial tail is visible to readers and rewritten only if it grows
+            if(bufferPos > 0) {
+                setChunk(bufferStart, encodeChunk(deflater, buffer, bufferPos));
             }
+            commitStagedChunks();
         }
 
         @Override
-        public void close() {
+        public void close() throws IOException {
+            if(closed) {
+                return;
+            }
             flush();
+            long length = getFilePointer();
+            long chunkCount = (length + buffer.length - 1) / buffer.length;
+            boolean staged = (stagingDB != null);
+            boolean compressed = (deflater != null);
+            FileMeta meta = new FileMeta(dataID, length, buffer.length, chunkCount, checksum.getValue(), compressed,
+                                         false, false);
+            setEntry(name, meta.toValue());
+            if(staged) {
+                // Conflicts with a concurrent deleteAbandonedStagedFiles() that removed this output's data
+                byte[] stagingKey = stagingSubspace.add(dataID).pack();
+                txn.addReadConflictKey(stagingKey);
+                txn.clear(stagingKey);
+            }
+            if(isCommitFile(name)) {
+                txn.mutate(MutationType.ADD, commitGenKey, LITTLE_ENDIAN_LONG_ONE);
+            }
+            if(compressed) {
+                deflater.end();
+            }
+            closed = true;
+        }
+
+        @Override
+        public long getFilePointer() {
+            return bufferStart + bufferPos;
+        }
+
+        @Override
+        @SuppressWarnings("deprecation")
+        public void seek(long pos) {
+            if(pos != getFilePointer()) {
+                throw new UnsupportedOperationException("seek() on append only output: " + name);
+            }
+        }
+
+        @Override
+        public long length() {
+            return getFilePointer();
+        }
+
+        private void writeChunk() throws IOException {
+            setChunk(bufferStart, encodeChunk(deflater, buffer, bufferPos));
+            bufferStart += bufferPos;
+            bufferPos = 0;
+        }
+
+        private void setChunk(long offset, byte[] chunk) throws IOException {
+            byte[] key = dataSubspace.add(dataID).add(offset).pack();
+            if(stagingDB == null) {
+                txn.set(key, chunk);
+                return;
+            }
+            stagedChunks.add(new KeyValue(key, chunk));
+            stagedBytes += chunk.length;
+            if(stagedBytes >= STAGED_TXN_BYTES) {
+                commitStagedChunks();
+            }
+        }
+
+        private void commitStagedChunks() throws IOException {
+            if(stagedChunks.isEmpty()) {
+                return;
+            }
+            final List<KeyValue> chunks = new ArrayList<KeyValue>(stagedChunks);
+            final byte[] stagingKey = stagingSubspace.add(dataID).pack();
+            boolean stillStaged = stagingDB.run(
+                    new Function<Transaction, Boolean>()
+                    {
+                        @Override
+                        public Boolean apply(Transaction stagingTxn) {
+                            if(Util.get(stagingTxn.get(stagingKey)) == null) {
+                                return false;
+                            }
+                            for(KeyValue kv : chunks) {
+                                stagingTxn.set(kv.getKey(), kv.getValue());
+                            }
+                            return true;
+                        }
+                    }
+            );
+            if(!stillStaged) {
+                throw new IOException("staged output was removed as abandoned: " + name);
+            }
+            stagedChunks.clear();
+            stagedBytes = 0;
         }
     }
 
-    private static class InputFile extends RAMFile
+    /**
+     * Paged input. Pages are read through the block cache when there is a <code>cacheKey</code>. With
+     * <code>readAhead</code> the read of the following page is started as soon as one is loaded, so sequential
+     * readers (merges) overlap their own work with the next round trip.
+     */
+    private class Input extends IndexInput
     {
-        public byte[] addBufferInternal(int size) {
-            return super.addBuffer(size);
+        private final FileMeta meta;
+        private final byte[] cacheKey;
+        private final int pageSize;
+        private final boolean readAhead;
+        private final long sliceOffset;
+        private final long length;
+        private byte[] page = Util.EMPTY_BYTES;
+        private long pageStart;
+        private int pagePos;
+        private int pageEnd;
+        private CompletableFuture<List<KeyValue>> nextPage;
+        private long nextPageStart;
+
+        public Input(String name, FileMeta meta, byte[] cacheKey, int pageSize, boolean readAhead,
+                     long sliceOffset, long length) {
+            super("FDBDirectory.Input(name=" + name + ")");
+            this.meta = meta;
+            this.cacheKey = cacheKey;
+            this.pageSize = pageSize;
+            this.readAhead = readAhead;
+            this.sliceOffset = sliceOffset;
+            this.length = length;
+            this.pageStart = sliceOffset;
+        }
+
+        public Input slice(String description, long offset, long length) {
+            if(offset < 0 || length < 0 || (offset + length) > this.length) {
+                throw new IllegalArgumentException("slice() " + description + " out of bounds: " + this);
+            }
+            Input slice = new Input(description, meta, cacheKey, pageSize, readAhead, sliceOffset + offset, length);
+            // Pages are never modified once read, share the current one
+            slice.page = page;
+            slice.pageStart = pageStart;
+            slice.pageEnd = (int)Math.max(0, Math.min(page.length, slice.sliceOffset + length - pageStart));
+            slice.seek(0);
+            return slice;
         }
 
-        public void setLengthInternal(int length) {
-            super.setLength(length);
+        @Override
+        public byte readByte() throws IOException {
+            if(pagePos >= pageEnd) {
+                loadPage(pageStart + pagePos);
+            }
+            return page[pagePos++];
         }
+
+        @Override
+        public void readBytes(byte[] b, int offset, int len) throws IOException {
+            while(len > 0) {
+                if(pagePos >= pageEnd) {
+                    loadPage(pageStart + pagePos);
+                }
+                int toCopy = Math.min(len, pageEnd - pagePos);
+                System.arraycopy(page, pagePos, b, offset, toCopy);
+                pagePos += toCopy;
+                offset += toCopy;
+                len -= toCopy;
+            }
+        }
+
+        @Override
+        public long getFilePointer() {
+            return pageStart + pagePos - sliceOffset;
+        }
+
+        @Override
+        public void seek(long pos) {
+            long filePos = sliceOffset + pos;
+            if(filePos >= pageStart && filePos < (pageStart + pageEnd)) {
+                pagePos = (int)(filePos - pageStart);
+            } else {
+                page = Util.EMPTY_BYTES;
+                pageStart = filePos;
+                pagePos = pageEnd = 0;
+            }
+        }
+
+        @Override
+        public long length() {
+            return length;
+        }
+
+        @Override
+        public Input clone() {
+            // Shallow, current and next page are shared
+            return (Input)super.clone();
+        }
+
+        @Override
+        public void close() {
+            // None
+        }
+
+        private void loadPage(long filePos) throws EOFException {
+            long sliceEnd = sliceOffset + length;
+            if(filePos >= sliceEnd) {
+                throw new EOFException("read past EOF: " + this);
+            }
+            // Cached pages start on a page boundary so that every input finds the same ones
+            int alignment = (cacheKey != null) ? pageSize : meta.chunkSize;
+            long begin = filePos - (filePos % alignment);
+            if(nextPage != null && nextPageStart == begin) {
+                page = assembleChunks(meta, begin, Util.get(nextPage));
+            } else {
+                page = readPage(meta, cacheKey, begin, begin + pageSize);
+            }
+            nextPage = null;
+            if(readAhead && (begin + pageSize) < sliceEnd) {
+                nextPageStart = begin + pageSize;
+                nextPage = readChunkValues(meta, nextPageStart, nextPageStart + pageSize);
+            }
+            pageStart = begin;
+            pagePos = (int)(filePos - begin);
+            pageEnd = (int)Math.min(page.length, sliceEnd - begin);
+            if(pagePos >= pageEnd) {
+                throw new EOFException("missing data at " + filePos + ": " + this);
+            }
+        }
+    }
+
+    //
+    // FDBDirectory
+    //
+
+    public long getStagedWriteThreshold() {
+        return stagedWriteThreshold;
+    }
+
+    /**
+     * Set the estimated flush or merge size, in bytes, at which outputs are written through their own series of
+     * bounded transactions instead of {@link #txn}. Negative, the default, to disable.
+     *
+     * <p>
+     * Staged outputs whose transaction never commits leave their data behind until
+     * {@link #deleteAbandonedStagedFiles(long)} is called.
+     * </p>
+     */
+    public void setStagedWriteThreshold(long stagedWriteThreshold) {
+        this.stagedWriteThreshold = stagedWriteThreshold;
+    }
+
+    /**
+     * Remove the data of staged outputs that were never published, e.g. because the transaction they were
+     * created in did not commit, and that were created at least <code>minAgeMillis</code> ago.
+     *
+     * <p>
+     * The age should exceed the longest an output stays open plus any clock skew between clients. An output
+     * that is removed while still open fails on its next write and cannot be published.
+     * </p>
+     */
+    public void deleteAbandonedStagedFiles(long minAgeMillis) {
+        long createdBefore = System.currentTimeMillis() - minAgeMillis;
+        for(KeyValue kv : txn.getRange(stagingSubspace.range())) {
+            Tuple record = Tuple.fromBytes(kv.getValue());
+            // Records without a creation time are from before it was written and at least as old as any other
+            long created = (record.size() > 1) ? record.getLong(1) : 0;
+            if(created <= createdBefore) {
+                long dataID = Tuple.fromBytes(kv.getKey()).getLong(stagingSubspace.size());
+                txn.clear(dataSubspace.add(dataID).range());
+                txn.clear(kv.getKey());
+            }
+        }
+    }
+
+    public Compression getCompression() {
+        return compression;
+    }
+
+    /** Set the chunk layout of files created from now on. Existing files are read with the one they were written in. */
+    public void setCompression(Compression compression) {
+        assert compression != null;
+        this.compression = compression;
+    }
+
+    public FDBBlockCache getBlockCache() {
+        return blockCache;
+    }
+
+    /** Set the cache used for reading closed files, <code>null</code> to disable. */
+    public void setBlockCache(FDBBlockCache blockCache) {
+        this.blockCache = blockCache;
+    }
+
+    public FDBLocalCache getLocalCache() {
+        return localCache;
+    }
+
+    /** Set the local disk tier closed files are copied to, and then searched from, <code>null</code> to disable. */
+    public void setLocalCache(FDBLocalCache localCache) {
+        this.localCache = localCache;
+    }
+
+    /**
+     * Create <code>dest</code> as another name for the data of the closed file <code>src</code>. No file bytes
+     * are read or written, the data is shared and only removed once every name for it has been deleted.
+     */
+    public void copyFile(String src, String dest) throws IOException {
+        FileMeta meta = getClosedFileMeta(src);
+        if(getDataID(dest) != -1) {
+            throw new FileAlreadyExistsException(dest);
+        }
+        // Blind writes, so that deleting a name that was never copied needn't read the reference count
+        FileMeta shared = meta.asShared();
+        if(!meta.shared) {
+            setEntry(src, shared.toValue());
+        }
+        setEntry(dest, shared.toValue());
+        // Blind increment, concurrent copies of the same file don't conflict
+        txn.mutate(MutationType.ADD, refSubspace.add(meta.dataID).pack(), LITTLE_ENDIAN_LONG_ONE);
+    }
+
+    /** Change the name of the closed file <code>src</code> to <code>dest</code>. No file bytes are read or written. */
+    public void renameFile(String src, String dest) throws IOException {
+        FileMeta meta = getClosedFileMeta(src);
+        if(getDataID(dest) != -1) {
+            throw new FileAlreadyExistsException(dest);
+        }
+        setEntry(dest, meta.toValue());
+        clearEntry(src);
+    }
+
+
+    /** Listener for {@link #addCommitListener}. */
+    public interface CommitListener
+    {
+        /** Called with the new commit generation. Return <code>false</code> to stop listening. */
+        boolean onCommit(long commitGeneration);
+
+        /** Called, instead of {@link #onCommit}, if watching failed. Listening has stopped. */
+        void onError(Throwable error);
+    }
+
+    /**
+     * Count of index commits, i.e. <code>segments_N</code> files written, as of {@link #txn}. This is a snapshot
+     * read, so polling it doesn't conflict with writers.
+     */
+    public long getCommitGeneration() {
+        return Util.unpackLittleEndianLong(Util.get(txn.snapshot().get(commitGenKey)));
+    }
+
+    /**
+     * Future completed with the commit generation once it differs from <code>knownGeneration</code>, e.g. the
+     * value from {@link #getCommitGeneration()} when a reader was last opened. Completes immediately if it already
+     * does. Built on a database watch, set by a transaction of its own, so no polling is involved.
+     */
+    public CompletableFuture<Long> watchCommitGeneration(final long knownGeneration) {
+        final Database db = txn.getDatabase();
+        CompletableFuture<Void> watch = db.run(
+                new Function<Transaction, CompletableFuture<Void>>()
+                {
+                    @Override
+                    public CompletableFuture<Void> apply(Transaction watchTxn) {
+                        long current = Util.unpackLittleEndianLong(Util.get(watchTxn.get(commitGenKey)));
+                        if(current != knownGeneration) {
+                            return CompletableFuture.completedFuture(null);
+                        }
+                        return watchTxn.watch(commitGenKey);
+                    }
+                }
+        );
+        return watch.thenCompose(
+                new Function<Void, CompletableFuture<Long>>()
+                {
+                    @Override
+                    public CompletableFuture<Long> apply(Void ignored) {
+                        return db.readAsync(
+                                new Function<ReadTransaction, CompletableFuture<Long>>()
+                                {
+                                    @Override
+                                    public CompletableFuture<Long> apply(ReadTransaction readTxn) {
+                                        return readTxn.get(commitGenKey).thenApply(
+                                                new Function<byte[], Long>()
+                                                {
+                                                    @Override
+                                                    public Long apply(byte[] value) {
+                                                        return Util.unpackLittleEndianLong(value);
+                                                    }
+                                                }
+                                        );
+                                    }
+                                }
+                        );
+                    }
+                }
+        );
+    }
+
+    /**
+     * Call <code>listener</code>, from a database callback, each time the commit generation moves on from
+     * <code>knownGeneration</code> until it returns <code>false</code>. If setting or waiting on a watch fails,
+     * including the first, the error is passed to {@link CommitListener#onError} and listening stops.
+     */
+    public void addCommitListener(long knownGeneration, final CommitListener listener) {
+        CompletableFuture<Long> watch;
+        try {
+            watch = watchCommitGeneration(knownGeneration);
+        } catch(RuntimeException e) {
+            listener.onError(e);
+            return;
+        }
+        watch.whenComplete(
+                new BiConsumer<Long, Throwable>()
+                {
+                    @Override
+                    public void accept(Long commitGeneration, Throwable error) {
+                        if(error != null) {
+                            boolean wrapped = (error instanceof CompletionException) && (error.getCause() != null);
+                            listener.onError(wrapped ? error.getCause() : error);
+                        } else if(listener.onCommit(commitGeneration)) {
+                            addCommitListener(commitGeneration, listener);
+                        }
+                    }
+                }
+        );
+    }
+
+    private static boolean isCommitFile(String name) {
+        return name.startsWith(IndexFileNames.SEGMENTS + "_");
     }
 
 
@@ -139,33 +727,363 @@ public class FDBDirectory extends Directory
     // Directory
     //
 
-    private long getDataID(String name) {
-        byte[] value = Util.get(txn.get(dirSubspace.add(name).pack()));
-        if(value == null) {
-            return -1;
+    /**
+     * Every directory entry, loaded with one range read and reused for as long as the names generation key is
+     * unchanged. Writers of entries add a random amount to that key, so a value other than the one this cache
+     * expects in a new {@link #txn}, whether from another writer or from own changes that didn't commit, causes
+     * a reload. Both reads are snapshot reads and callers add conflicts for the names they actually depend on.
+     */
+    private synchronized TreeMap<String, FileMeta> getNameCache() {
+        if(nameCache != null && nameCacheTxn == txn) {
+            return nameCache;
+        }
+        long gen = Util.unpackLittleEndianLong(Util.get(txn.snapshot().get(namesGenKey)));
+        if(nameCache == null || gen != nameCacheGen) {
+            TreeMap<String, FileMeta> names = new TreeMap<String, FileMeta>();
+            for(KeyValue kv : txn.snapshot().getRange(dirSubspace.range())) {
+                String name = Tuple.fromBytes(kv.getKey()).getString(dirSubspace.size());
+                names.put(name, FileMeta.fromValue(kv.getValue()));
+            }
+            nameCache = names;
         }
-        return Tuple.fromBytes(value).getLong(0);
+        nameCacheTxn = txn;
+        nameCacheGen = gen;
+        return nameCache;
+    }
+
+    private synchronized void setEntry(String name, byte[] value) {
+        TreeMap<String, FileMeta> names = getNameCache();
+        txn.set(dirSubspace.add(name).pack(), value);
+        names.put(name, FileMeta.fromValue(value));
+        bumpNamesGen();
+    }
+
+    private synchronized void clearEntry(String name) {
+        TreeMap<String, FileMeta> names = getNameCache();
+        txn.clear(dirSubspace.add(name).pack());
+        names.remove(name);
+        bumpNamesGen();
+    }
+
+    private void bumpNamesGen() {
+        long increment = namesGenRandom.nextLong();
+        txn.mutate(MutationType.ADD, namesGenKey, Util.packLittleEndianLong(increment));
+        nameCacheGen += increment;
+    }
+
+    /** Entries of legacy files have their length filled in, from the last chunk, the first time they are seen. */
+    private synchronized FileMeta getFileMeta(String name) {
+        TreeMap<String, FileMeta> names = getNameCache();
+        FileMeta meta = names.get(name);
+        txn.addReadConflictKey(dirSubspace.add(name).pack());
+        if(meta != null && meta.isLengthUnknown()) {
+            meta = meta.withLength(readLength(meta));
+            names.put(name, meta);
+        }
+        return meta;
+    }
+
+    private FileMeta getClosedFileMeta(String name) throws NoSuchFileException {
+        FileMeta meta = getFileMeta(name);
+        if(meta == null) {
+            throw new NoSuchFileException(name);
+        }
+        if(!meta.isComplete()) {
+            throw new IllegalStateException("File is still open: " + name);
+        }
+        return meta;
+    }
+
+    private long getDataID(String name) {
+        FileMeta meta = getFileMeta(name);
+        return (meta != null) ? meta.dataID : -1;
+    }
+
+    private long getLength(FileMeta meta) {
+        return (meta.length != -1) ? meta.length : readLength(meta);
+    }
+
+    private boolean isCompressed() {
+        return compression != Compression.NONE;
     }
 
     private long createDataID(String name) {
-        AsyncIterator<KeyValue> it = txn.getRange(dataSubspace.range(), 1, true).iterator();
-        long nextID = 0;
-        if(it.hasNext()) {
-            KeyValue kv = it.next();
-            nextID = Tuple.fromBytes(kv.getKey()).getLong(dataSubspace.size()) + 1;
+        long dataID = allocator.allocate(txn, dataSubspace);
+        setEntry(name, FileMeta.toOpenValue(dataID, isCompressed()));
+        // Empty first chunk marks the ID as in use, even if the file stays empty
+        txn.set(dataSubspace.add(dataID).add(0).pack(), Util.EMPTY_BYTES);
+        return dataID;
+    }
+
+    private boolean isLargeWrite(IOContext context) {
+        if(stagedWriteThreshold < 0 || context == null) {
+            return false;
+        }
+        long estimate = 0;
+        if(context.mergeInfo != null) {
+            estimate = context.mergeInfo.estimatedMergeBytes;
+        } else if(context.flushInfo != null) {
+            estimate = context.flushInfo.estimatedSegmentSize;
+        }
+        return estimate >= stagedWriteThreshold;
+    }
+
+    /**
+     * Allocate the data ID, and a staging record of it with the file name and creation time, in a committed
+     * transaction of its own so that neither depends on the outcome of {@link #txn}. Records left by outputs that
+     * were never published can be removed with {@link #deleteAbandonedStagedFiles(long)}.
+     */
+    private Output createStagedOutput(final String name) {
+        Database db = txn.getDatabase();
+        long dataID = db.run(
+                new Function<Transaction, Long>()
+                {
+                    @Override
+                    public Long apply(Transaction stagingTxn) {
+                        long dataID = allocator.allocate(stagingTxn, dataSubspace);
+                        stagingTxn.set(dataSubspace.add(dataID).add(0).pack(), Util.EMPTY_BYTES);
+                        stagingTxn.set(stagingSubspace.add(dataID).pack(),
+                                       Tuple.from(name, System.currentTimeMillis()).pack());
+                        return dataID;
+                    }
+                }
+        );
+        setEntry(name, FileMeta.toOpenValue(dataID, isCompressed()));
+        addStagedDataID(dataID);
+        return new Output(name, dataID, db, isCompressed());
+    }
+
+    /** Remember that <code>dataID</code> was staged after {@link #txn} started, until it is replaced. */
+    private synchronized void addStagedDataID(long dataID) {
+        if(stagedDataIDsTxn != txn) {
+            stagedDataIDs.clear();
+            stagedDataIDsTxn = txn;
+        }
+        stagedDataIDs.add(dataID);
+    }
+
+    /** Any other file, including one staged by an earlier transaction, is fully visible to {@link #txn}. */
+    private synchronized boolean isStagedInTxn(long dataID) {
+        return (stagedDataIDsTxn == txn) && stagedDataIDs.contains(dataID);
+    }
+
+    /** Find the length of a file from its last chunk. Only required for open outputs and legacy files. */
+    private long readLength(FileMeta meta) {
+        Tuple fileTuple = dataSubspace.add(meta.dataID);
+        List<KeyValue> last = Util.get(txn.getRange(fileTuple.range(), 1, true).asList());
+        if(last.isEmpty()) {
+            return 0;
+        }
+        KeyValue kv = last.get(0);
+        return Tuple.fromBytes(kv.getKey()).getLong(fileTuple.size()) + decodeChunk(meta, kv.getValue()).length;
+    }
+
+    /** Value holding the first <code>length</code> bytes of <code>chunk</code>, deflated if there is a deflater. */
+    private static byte[] encodeChunk(Deflater deflater, byte[] chunk, int length) {
+        if(deflater == null) {
+            return Arrays.copyOf(chunk, length);
+        }
+        // Anything that doesn't fit in a smaller value than the raw one is stored raw
+        byte[] value = new byte[1 + length];
+        deflater.reset();
+        deflater.setInput(chunk, 0, length);
+        deflater.finish();
+        int encodedLength = deflater.deflate(value, 1, length);
+        if(deflater.finished() && encodedLength < length) {
+            value[0] = CHUNK_DEFLATE;
+            return Arrays.copyOf(value, 1 + encodedLength);
+        }
+        value[0] = CHUNK_RAW;
+        System.arraycopy(chunk, 0, value, 1, length);
+        return value;
+    }
+
+    /** Bytes of a chunk value written by {@link #encodeChunk} for the file <code>meta</code>. */
+    private static byte[] decodeChunk(FileMeta meta, byte[] value) {
+        if(!meta.compressed || value.length == 0) {
+            return value;
+        }
+        switch(value[0]) {
+            case CHUNK_RAW:
+                return Arrays.copyOfRange(value, 1, value.length);
+            case CHUNK_DEFLATE:
+                Inflater inflater = new Inflater();
+                try {
+                    inflater.setInput(value, 1, value.length - 1);
+                    byte[] chunk = new byte[meta.chunkSize];
+                    int length = inflater.inflate(chunk);
+                    if(!inflater.finished()) {
+                        throw new IllegalStateException("Chunk larger than " + meta.chunkSize + ": " + meta.dataID);
+                    }
+                    return (length == chunk.length) ? chunk : Arrays.copyOf(chunk, length);
+                } catch(DataFormatException e) {
+                    throw new IllegalStateException("Corrupt chunk: " + meta.dataID, e);
+                } finally {
+                    inflater.end();
+                }
+            default:
+                throw new IllegalStateException("Unknown chunk header " + value[0] + ": " + meta.dataID);
+        }
+    }
+
+    /** Key identifying a closed file in the {@link FDBBlockCache} or <code>null</code> if it can't be cached. */
+    private byte[] getCacheKey(FileMeta meta) {
+        if(blockCache == null || !meta.isComplete()) {
+            return null;
+        }
+        return getFileKey(meta);
+    }
+
+    /** Key of a closed file in the {@link FDBBlockCache} and {@link FDBLocalCache}. */
+    private byte[] getFileKey(FileMeta meta) {
+        return dataSubspace.add(meta.dataID).add(meta.checksum).pack();
+    }
+
+    /**
+     * Name of the {@link FDBLocalCache} copy of a closed file, copied now if required, or <code>null</code> if
+     * it should be read from the database. Merges and read once inputs don't go through the local tier.
+     */
+    private String getLocalName(String name, FileMeta meta, IOContext context) throws IOException {
+        if(localCache == null || !meta.isComplete() || isMergeRead(context) || isReadOnce(context)) {
+            return null;
+        }
+        byte[] fileKey = getFileKey(meta);
+        String localName = localCache.get(fileKey);
+        if(localName == null) {
+            int pageSize = getPageSize(meta, meta.length, IOContext.READONCE);
+            localName = localCache.put(fileKey, new Input(name, meta, null, pageSize, false, 0, meta.length));
+        }
+        return localName;
+    }
+
+    /** Whole chunk page size for reading <code>length</code> bytes of <code>meta</code> in <code>context</code>. */
+    private static int getPageSize(FileMeta meta, long length, IOContext context) {
+        int chunkSize = meta.chunkSize;
+        long pageSize = PAGE_SIZE;
+        if(isMergeRead(context)) {
+            pageSize = Math.min(length, MERGE_PAGE_SIZE);
+        } else if(isReadOnce(context)) {
+            pageSize = Math.min(length, WHOLE_FILE_PAGE_SIZE);
+        }
+        pageSize = Math.max(pageSize - (pageSize % chunkSize), chunkSize);
+        return (int)pageSize;
+    }
+
+    private static boolean isMergeRead(IOContext context) {
+        return (context != null) && (context.context == IOContext.Context.MERGE);
+    }
+
+    private static boolean isReadOnce(IOContext context) {
+        return (context != null) && context.readOnce;
+    }
+
+    /** As {@link #readChunks} but through the block cache if <code>cacheKey</code> is present. */
+    private byte[] readPage(FileMeta meta, byte[] cacheKey, long begin, long end) {
+        if(cacheKey == null) {
+            return readChunks(meta, begin, end);
+        }
+        byte[] page = blockCache.get(cacheKey, begin);
+        if(page == null) {
+            page = readChunks(meta, begin, end);
+            blockCache.put(cacheKey, begin, page);
         }
-        txn.set(dirSubspace.add(name).pack(), Tuple.from(nextID).pack());
-        txn.set(dataSubspace.add(nextID).add(0).pack(), Util.EMPTY_BYTES);
-        return nextID;
+        return page;
+    }
+
+    /** Read the chunks of a file that start within <code>[begin, end)</code> into one contiguous array. */
+    private byte[] readChunks(FileMeta meta, long begin, long end) {
+        return assembleChunks(meta, begin, Util.get(readChunkValues(meta, begin, end)));
+    }
+
+    /**
+     * Start reading the chunk values of a file that start within <code>[begin, end)</code>.
+     *
+     * Files staged since {@link #txn} started were committed by other transactions, so are read from a new one.
+     * This is safe as chunks never change once written.
+     */
+    private CompletableFuture<List<KeyValue>> readChunkValues(final FileMeta meta, final long begin, final long end) {
+        if(isStagedInTxn(meta.dataID)) {
+            return txn.getDatabase().readAsync(
+                    new Function<ReadTransaction, CompletableFuture<List<KeyValue>>>()
+                    {
+                        @Override
+                        public CompletableFuture<List<KeyValue>> apply(ReadTransaction readTxn) {
+                            return readChunkValues(readTxn, meta.dataID, begin, end);
+                        }
+                    }
+            );
+        }
+        return readChunkValues(txn, meta.dataID, begin, end);
+    }
+
+    /** Large ranges are split into slices that are all requested at once and then put back together in order. */
+    private CompletableFuture<List<KeyValue>> readChunkValues(ReadTransaction readTxn, long dataID, long begin,
+                                                              long end) {
+        Tuple fileTuple = dataSubspace.add(dataID);
+        int slices = (int)Math.max(1, Math.min(PARALLEL_READS, (end - begin) / PARALLEL_READ_MIN_BYTES));
+        long sliceSize = (end - begin + slices - 1) / slices;
+        final List<CompletableFuture<List<KeyValue>>> futures =
+                new ArrayList<CompletableFuture<List<KeyValue>>>(slices);
+        for(long sliceBegin = begin; sliceBegin < end; sliceBegin += sliceSize) {
+            long sliceEnd = Math.min(end, sliceBegin + sliceSize);
+            futures.add(readTxn.getRange(fileTuple.add(sliceBegin).pack(), fileTuple.add(sliceEnd).pack()).asList());
+        }
+        if(futures.size() == 1) {
+            return futures.get(0);
+        }
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[futures.size()])).thenApply(
+                new Function<Void, List<KeyValue>>()
+                {
+                    @Override
+                    public List<KeyValue> apply(Void ignored) {
+                        List<KeyValue> chunks = new ArrayList<KeyValue>();
+                        for(CompletableFuture<List<KeyValue>> future : futures) {
+                            chunks.addAll(future.join());
+                        }
+                        return chunks;
+                    }
+                }
+        );
+    }
+
+    /** Decode and copy <code>chunks</code>, the values from {@link #readChunkValues}, into one array. */
+    private byte[] assembleChunks(FileMeta meta, long begin, List<KeyValue> chunks) {
+        if(chunks.isEmpty()) {
+            return Util.EMPTY_BYTES;
+        }
+        int offsetIndex = dataSubspace.size() + 1;
+        KeyValue last = chunks.get(chunks.size() - 1);
+        long lastOffset = Tuple.fromBytes(last.getKey()).getLong(offsetIndex);
+        byte[] lastChunk = decodeChunk(meta, last.getValue());
+        byte[] bytes = new byte[(int)(lastOffset - begin) + lastChunk.length];
+        for(KeyValue kv : chunks) {
+            long offset = Tuple.fromBytes(kv.getKey()).getLong(offsetIndex);
+            byte[] chunk = (kv == last) ? lastChunk : decodeChunk(meta, kv.getValue());
+            System.arraycopy(chunk, 0, bytes, (int)(offset - begin), chunk.length);
+        }
+        return bytes;
     }
 
     @Override
-    public String[] listAll() {
-        List<String> outList = new ArrayList<String>();
-        for(KeyValue kv : txn.getRange(dirSubspace.range())) {
-            outList.add(Tuple.fromBytes(kv.getKey()).getString(dirSubspace.size()));
+    public synchronized String[] listAll() {
+        Collection<String> names = getNameCache().keySet();
+        addNamesReadConflict();
+        return names.toArray(new String[names.size()]);
+    }
+
+    /** As {@link #listAll()} but with the length of each file. */
+    public synchronized Map<String, Long> listAllWithSizes() {
+        Map<String, Long> outMap = new TreeMap<String, Long>();
+        for(Map.Entry<String, FileMeta> entry : getNameCache().entrySet()) {
+            outMap.put(entry.getKey(), getLength(entry.getValue()));
         }
-        return outList.toArray(new String[outList.size()]);
+        addNamesReadConflict();
+        return outMap;
+    }
+
+    private void addNamesReadConflict() {
+        Range range = dirSubspace.range();
+        txn.addReadConflictRange(range.begin, range.end);
     }
 
     @Override
@@ -175,18 +1093,89 @@ public class FDBDirectory extends Directory
     }
 
     @Override
-    public void deleteFile(String name) throws NoSuchFileException {
-        long dataID = getDataID(name);
-        if(dataID == -1) {
+    public void deleteFile(String name) throws IOException {
+        FileMeta meta = getFileMeta(name);
+        if(meta == null) {
             throw new NoSuchFileException(name);
         }
-        txn.clear(dirSubspace.add(name).pack());
-        txn.clear(dataSubspace.add(dataID).range());
+        clearEntry(name);
+        byte[] refValue = null;
+        if(meta.shared) {
+            refValue = Util.get(txn.get(refSubspace.add(meta.dataID).pack()));
+        }
+        releaseData(meta, refValue, 1);
+    }
+
+    /**
+     * As {@link #deleteFile} for every name in <code>names</code>, all of which must exist. The reference counts
+     * of every shared file are read concurrently, instead of one round trip per file.
+     */
+    public void deleteFiles(Collection<String> names) throws IOException {
+        Map<Long, FileMeta> metas = new LinkedHashMap<Long, FileMeta>();
+        Map<Long, Integer> released = new HashMap<Long, Integer>();
+        Set<String> uniqueNames = new LinkedHashSet<String>(names);
+        for(String name : uniqueNames) {
+            FileMeta meta = getFileMeta(name);
+            if(meta == null) {
+                throw new NoSuchFileException(name);
+            }
+            metas.put(meta.dataID, meta);
+            Integer count = released.get(meta.dataID);
+            released.put(meta.dataID, (count != null) ? count + 1 : 1);
+        }
+        List<CompletableFuture<byte[]>> refValues = new ArrayList<CompletableFuture<byte[]>>(metas.size());
+        for(FileMeta meta : metas.values()) {
+            if(meta.shared) {
+                refValues.add(txn.get(refSubspace.add(meta.dataID).pack()));
+            } else {
+                refValues.add(CompletableFuture.<byte[]>completedFuture(null));
+            }
+        }
+        for(String name : uniqueNames) {
+            clearEntry(name);
+        }
+        int i = 0;
+        for(FileMeta meta : metas.values()) {
+            releaseData(meta, Util.get(refValues.get(i++)), released.get(meta.dataID));
+        }
+    }
+
+    /**
+     * Drop <code>count</code> names' references to the data of <code>meta</code>, clearing the data if they were
+     * the last ones. <code>refValue</code> is the count of additional names, from {@link #copyFile}, which is
+     * absent for the common single name case and not read at all unless the entry is marked shared.
+     */
+    private void releaseData(FileMeta meta, byte[] refValue, int count) throws IOException {
+        byte[] refKey = refSubspace.add(meta.dataID).pack();
+        long remaining = Util.unpackLittleEndianLong(refValue) + 1 - count;
+        if(remaining > 1) {
+            txn.mutate(MutationType.ADD, refKey, Util.packLittleEndianLong(-count));
+            return;
+        }
+        if(remaining == 1) {
+            txn.clear(refKey);
+            return;
+        }
+        if(refValue != null) {
+            txn.clear(refKey);
+        }
+        txn.clear(dataSubspace.add(meta.dataID).range());
+        byte[] cacheKey = getCacheKey(meta);
+        if(cacheKey != null) {
+            blockCache.invalidate(cacheKey);
+        }
+        if(localCache != null && meta.isComplete()) {
+            localCache.invalidate(getFileKey(meta));
+        }
     }
 
     @Override
-    public long fileLength(String name) throws IOException {
-        return openInput(name, null).length();
+    public long fileLength(String name) throws FileNotFoundException {
+        FileMeta meta = getFileMeta(name);
+        if(meta == null) {
+            throw new FileNotFoundException(name);
+        }
+        return getLength(meta);
     }
 
     @Override
@@ -194,7 +1183,24 @@ public class FDBDirectory extends Directory
         if(getDataID(name) != -1) {
             throw new FileAlreadyExistsException(name);
         }
-        return new Output(name, createDataID(name));
+        if(isLargeWrite(context)) {
+            return createStagedOutput(name);
+        }
+        return new Output(name, createDataID(name), null, isCompressed());
+    }
+
+    /** Files copied within this directory, in the same transaction, share their data with {@link #copyFile}. */
+    @Override
+    public void copy(Directory to, String src, String dest, IOContext context) throws IOException {
+        if(to instanceof FDBDirectory) {
+            FDBDirectory toDir = (FDBDirectory)to;
+            FileMeta meta = getFileMeta(src);
+            if(toDir.txn == txn && toDir.subspace.equals(subspace) && meta != null && meta.isComplete()) {
+                copyFile(src, dest);
+                return;
+            }
+        }
+        super.copy(to, src, dest, context);
     }
 
     @Override
@@ -204,20 +1210,62 @@ public class FDBDirectory extends Directory
 
     @Override
     public IndexInput openInput(String name, IOContext context) throws IOException {
-        long dataID = getDataID(name);
-        if(dataID == -1) {
+        FileMeta meta = getFileMeta(name);
+        if(meta == null) {
+            throw new FileNotFoundException(name);
+        }
+        String localName = getLocalName(name, meta, context);
+        if(localName != null) {
+            IndexInput localInput = localCache.openInput(localName, context);
+            if(localInput != null) {
+                return localInput;
+            }
+            // Evicted since, read from the database instead
+        }
+        return openDataInput(name, meta, context);
+    }
+
+    private Input openDataInput(String name, FileMeta meta, IOContext context) {
+        long length = getLength(meta);
+        int pageSize = getPageSize(meta, length, context);
+        boolean readAhead = isMergeRead(context);
+        // Merge and read once pages are used once, don't let them push search pages out of the cache
+        byte[] cacheKey = (readAhead || isReadOnce(context)) ? null : getCacheKey(meta);
+        return new Input(name, meta, cacheKey, pageSize, readAhead, 0, length);
+    }
+
+    @Override
+    public IndexInputSlicer createSlicer(String name, IOContext context) throws IOException {
+        FileMeta meta = getFileMeta(name);
+        if(meta == null) {
             throw new FileNotFoundException(name);
         }
-        InputFile file = new InputFile();
-        int totalLen = 0;
-        for(KeyValue kv : txn.getRange(dataSubspace.add(dataID).range())) {
-            byte[] value = kv.getValue();
-            byte[] ramValue = file.addBufferInternal(value.length);
-            totalLen += value.length;
-            System.arraycopy(value, 0, ramValue, 0, value.length);
+        String localName = getLocalName(name, meta, context);
+        if(localName != null) {
+            IndexInputSlicer localSlicer = localCache.createSlicer(localName, context);
+            if(localSlicer != null) {
+                return localSlicer;
+            }
         }
-        file.setLengthInternal(totalLen);
-        return new RAMInputStream(name, file);
+        final Input base = openDataInput(name, meta, context);
+        return new IndexInputSlicer()
+        {
+            @Override
+            public IndexInput openSlice(String sliceDescription, long offset, long length) {
+                return base.slice(sliceDescription, offset, length);
+            }
+
+            @Override
+            @SuppressWarnings("deprecation")
+            public IndexInput openFullSlice() {
+                return base.clone();
+            }
+
+            @Override
+            public void close() {
+                // None
+            }
+        };
     }
 
     @Override
@@ -0,0 +1,226 @@
+/**
+ * FoundationDB Lucene Layer
+ * Copyright (c) 2013 FoundationDB, LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.foundationdb.lucene;
+
+import org.apache.lucene.store.Directory.IndexInputSlicer;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.store.NoLockFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Size bounded, LRU copy of closed {@link FDBDirectory} files on local disk, read through memory mapped inputs.
+ *
+ * <p>
+ * Files are keyed as in {@link FDBBlockCache} and stored under a digest of that key, so entries left by a
+ * previous process are picked up again on construction. Evicted or invalidated files are unlinked, which leaves
+ * any input still open on them readable on POSIX file systems.
+ * </p>
+ */
+public class FDBLocalCache
+{
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    private final MMapDirectory localDir;
+    private final long maxBytes;
+    private final LinkedHashMap<String, Long> files = new LinkedHashMap<String, Long>(16, 0.75f, true);
+    private long usedBytes = 0;
+    private final AtomicLong tempCounter = new AtomicLong();
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+
+
+    public FDBLocalCache(File path, long maxBytes) throws IOException {
+        if(!path.isDirectory() && !path.mkdirs()) {
+            throw new IOException("Cannot create directory: " + path);
+        }
+        this.localDir = new MMapDirectory(path, NoLockFactory.getNoLockFactory());
+        this.maxBytes = maxBytes;
+        for(String name : localDir.listAll()) {
+            if(name.endsWith(TEMP_SUFFIX)) {
+                localDir.deleteFile(name);
+            } else {
+                long length = localDir.fileLength(name);
+                files.put(name, length);
+                usedBytes += length;
+            }
+        }
+        evict();
+    }
+
+    /** Local name of <code>fileKey</code> or <code>null</code> if not present. */
+    public String get(byte[] fileKey) {
+        String localName = getLocalName(fileKey);
+        synchronized(this) {
+            if(files.get(localName) == null) {
+                missCount.incrementAndGet();
+                return null;
+            }
+        }
+        hitCount.incrementAndGet();
+        return localName;
+    }
+
+    /**
+     * Copy all of <code>source</code> to local disk as <code>fileKey</code>. The copy is made outside of any lock
+     * and only published once complete. Returns the local name or <code>null</code> if the file is too large.
+     */
+    public String put(byte[] fileKey, IndexInput source) throws IOException {
+        long length = source.length();
+        if(length > maxBytes) {
+            return null;
+        }
+        String localName = getLocalName(fileKey);
+        String tempName = localName + "." + tempCounter.incrementAndGet() + TEMP_SUFFIX;
+        IndexOutput out = localDir.createOutput(tempName, IOContext.DEFAULT);
+        boolean success = false;
+        try {
+            out.copyBytes(source, length);
+            success = true;
+        } finally {
+            out.close();
+            if(!success) {
+                localDir.deleteFile(tempName);
+            }
+        }
+        synchronized(this) {
+            if(files.containsKey(localName)) {
+                localDir.deleteFile(tempName);
+                return localName;
+            }
+            File dir = localDir.getDirectory();
+            Files.move(
+                    new File(dir, tempName).toPath(), new File(dir, localName).toPath(), StandardCopyOption.ATOMIC_MOVE
+            );
+            files.put(localName, length);
+            usedBytes += length;
+            evict();
+        }
+        return localName;
+    }
+
+    /**
+     * Open <code>localName</code> or return <code>null</code> if it has been evicted or invalidated since it was
+     * returned. Opened under the lock so that the file can't be unlinked in between.
+     */
+    public synchronized IndexInput openInput(String localName, IOContext context) throws IOException {
+        if(!files.containsKey(localName)) {
+            return null;
+        }
+        return localDir.openInput(localName, context);
+    }
+
+    /** As {@link #openInput}, the returned slicer maps the whole file up front. */
+    public synchronized IndexInputSlicer createSlicer(String localName, IOContext context) throws IOException {
+        if(!files.containsKey(localName)) {
+            return null;
+        }
+        return localDir.createSlicer(localName, context);
+    }
+
+    /** Remove the local copy of <code>fileKey</code>, if present. */
+    public synchronized void invalidate(byte[] fileKey) throws IOException {
+        String localName = getLocalName(fileKey);
+        Long length = files.remove(localName);
+        if(length != null) {
+            usedBytes -= length;
+            localDir.deleteFile(localName);
+        }
+    }
+
+    public synchronized void clear() throws IOException {
+        for(String localName : files.keySet()) {
+            localDir.deleteFile(localName);
+        }
+        files.clear();
+        usedBytes = 0;
+    }
+
+    public File getPath() {
+        return localDir.getDirectory();
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized long getUsedBytes() {
+        return usedBytes;
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+
+    //
+    // Helpers
+    //
+
+    private synchronized void evict() throws IOException {
+        Iterator<Map.Entry<String, Long>> it = files.entrySet().iterator();
+        while(usedBytes > maxBytes && it.hasNext()) {
+            Map.Entry<String, Long> entry = it.next();
+            usedBytes -= entry.getValue();
+            localDir.deleteFile(entry.getKey());
+            it.remove();
+            evictionCount.incrementAndGet();
+        }
+    }
+
+    private static String getLocalName(byte[] fileKey) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch(NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        StringBuilder sb = new StringBuilder();
+        for(byte b : digest.digest(fileKey)) {
+            sb.append(String.format("%02x", b & 0xFF));
+        }
+        return sb.toString();
+    }
+}
@@ -24,7 +24,7 @@
 package com.foundationdb.lucene;
 
 import com.apple.foundationdb.KeyValue;
-import com.apple.foundationdb.MutationType;
+import com.apple.foundationdb.tuple.ByteArrayUtil;
 import com.apple.foundationdb.tuple.Tuple;
 import org.apache.lucene.codecs.FieldsConsumer;
 import org.apache.lucene.codecs.FieldsProducer;
@@ -32,35 +32,84 @@ import org.apache.lucene.codecs.PostingsConsumer;
 import org.apache.lucene.codecs.PostingsFormat;
 import org.apache.lucene.codecs.TermStats;
 import org.apache.lucene.codecs.TermsConsumer;
+import org.apache.lucene.codecs.bloom.FuzzySet;
 import org.apache.lucene.index.DocsAndPositionsEnum;
 import org.apache.lucene.index.DocsEnum;
 import org.apache.lucene.index.FieldInfo;
 import org.apache.lucene.index.FieldInfo.IndexOptions;
 import org.apache.lucene.index.FieldInfos;
+import org.apache.lucene.index.IndexFormatTooNewException;
+import org.apache.lucene.index.IndexFormatTooOldException;
 import org.apache.lucene.index.SegmentReadState;
 import org.apache.lucene.index.SegmentWriteState;
+import org.apache.lucene.index.Terms;
 import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.store.ByteArrayDataInput;
 import org.apache.lucene.util.Bits;
 import org.apache.lucene.util.BytesRef;
-
+import org.apache.lucene.util.GrowableByteArrayDataOutput;
+import org.apache.lucene.util.IntsRef;
+import org.apache.lucene.util.automaton.CompiledAutomaton;
+import org.apache.lucene.util.fst.Builder;
+import org.apache.lucene.util.fst.BytesRefFSTEnum;
+import org.apache.lucene.util.fst.FST;
+import org.apache.lucene.util.fst.PositiveIntOutputs;
+
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
 
 public final class FDBPostingsFormat extends PostingsFormat
 {
-    private static final String POSTINGS_EXT = "pst";
-    private static final String NUM_DOCS = "numDocs";
-    private static final byte[] LITTLE_ENDIAN_LONG_ONE = { 1, 0, 0, 0, 0, 0, 0, 0 };
+    /** Comma separated names of the fields to write a Bloom filter of terms for. */
+    static final String BLOOM_FIELDS_PROP_NAME = "FDBPostingsFormat.bloomFields";
+
+    static final String POSTINGS_EXT = "pst";
+    /** Layout of the segment's postings, <code>("version") => (FORMAT_VERSION)</code>. Absent before blocks. */
+    static final String FORMAT_VERSION_KEY = "version";
+    private static final int FORMAT_VERSION = 1;
+    private static final String TERMS = "terms";
+    private static final String TERMS_INDEX = "index";
+    static final String BLOOM_FILTER = "bloom";
+    private static final String FIELD_STATS = "stats";
+    private static final String POSITIONS = "pos";
+    /** Maximum number of documents in each postings block. */
+    private static final int BLOCK_SIZE = 128;
+    /** Encoded size of documents or positions at which a postings block is ended early. */
+    private static final int BLOCK_MAX_BYTES = 64 * 1024;
+    /** Minimum distance, in doc IDs, past the next block at which advance() seeks instead of scanning. */
+    private static final int SKIP_MIN_DOCS = 8 * BLOCK_SIZE;
+    /** Maximum size of each value a postings block is split into. */
+    private static final int BLOCK_VALUE_SIZE = 10000;
+    /** Number of terms matched by intersect() whose entries are read together. */
+    private static final int INTERSECT_BATCH_SIZE = 128;
+    /** Saturation a Bloom filter is downsized to when written. */
+    private static final float BLOOM_TARGET_SATURATION = 0.1f;
+    /** Saturation above which a Bloom filter would rarely rule anything out and isn't written. */
+    private static final float BLOOM_MAX_SATURATION = 0.9f;
+
+    private final Set<String> bloomFields;
 
 
     public FDBPostingsFormat() {
+        this(parseBloomFields(System.getProperty(BLOOM_FIELDS_PROP_NAME, "")));
+    }
+
+    /** Write a Bloom filter for each of <code>bloomFields</code>, letting readers rule out missing terms cheaply. */
+    public FDBPostingsFormat(Set<String> bloomFields) {
         super(FDBPostingsFormat.class.getSimpleName());
+        this.bloomFields = bloomFields;
     }
 
 
@@ -69,13 +118,29 @@ public final class FDBPostingsFormat extends PostingsFormat
     //
 
     @Override
-    public FieldsProducer fieldsProducer(SegmentReadState state) {
+    public FieldsProducer fieldsProducer(SegmentReadState state) throws IOException {
         return new FDBFieldsProducer(state);
     }
 
     @Override
     public FieldsConsumer fieldsConsumer(SegmentWriteState state) {
-        return new FDBFieldsConsumer(state);
+        return new FDBFieldsConsumer(state, bloomFields);
+    }
+
+
+    //
+    // Helpers
+    //
+
+    private static Set<String> parseBloomFields(String fields) {
+        Set<String> set = new HashSet<String>();
+        for(String field : fields.split(",")) {
+            field = field.trim();
+            if(!field.isEmpty()) {
+                set.add(field);
+            }
+        }
+        return set;
     }
 
 
@@ -92,10 +157,32 @@ public final class FDBPostingsFormat extends PostingsFormat
         private final Tuple segmentTuple;
 
 
-        public FDBFieldsProducer(SegmentReadState state) {
+        public FDBFieldsProducer(SegmentReadState state) throws IOException {
             this.fieldInfos = state.fieldInfos;
             this.dir = Util.unwrapDirectory(state.directory);
             this.segmentTuple = dir.subspace.add(state.segmentInfo.name).add(POSTINGS_EXT);
+            checkFormatVersion(state.segmentInfo.name);
+        }
+
+        /** Segments written in the earlier, one key per document, layout would otherwise look empty. */
+        private void checkFormatVersion(String segmentName) throws IOException {
+            byte[] value = Util.get(dir.txn.get(segmentTuple.add(FORMAT_VERSION_KEY).pack()));
+            if(value == null) {
+                for(FieldInfo fi : fieldInfos) {
+                    if(fi.isIndexed()) {
+                        throw new IndexFormatTooOldException("postings of segment " + segmentName, "unversioned");
+                    }
+                }
+                return;
+            }
+            int version = (int)Tuple.fromBytes(value).getLong(0);
+            if(version != FORMAT_VERSION) {
+                String desc = "postings of segment " + segmentName;
+                if(version < FORMAT_VERSION) {
+                    throw new IndexFormatTooOldException(desc, version, FORMAT_VERSION, FORMAT_VERSION);
+                }
+                throw new IndexFormatTooNewException(desc, version, FORMAT_VERSION, FORMAT_VERSION);
+            }
         }
 
         @Override
@@ -116,8 +203,13 @@ public final class FDBPostingsFormat extends PostingsFormat
             if(terms == null) {
                 FieldInfo fieldInfo = fieldInfos.fieldInfo(field);
                 if(fieldInfo != null) {
-                    terms = new FDBPostingsTerms(fieldInfo);
-                    termsCache.put(field, terms);
+                    // Only written for fields with terms
+                    Tuple fieldTuple = segmentTuple.add(fieldInfo.number);
+                    byte[] stats = Util.get(dir.txn.get(fieldTuple.add(FIELD_STATS).pack()));
+                    if(stats != null) {
+                        terms = new FDBPostingsTerms(fieldInfo, fieldTuple, Tuple.fromBytes(stats));
+                        termsCache.put(field, terms);
+                    }
                 }
             }
             return terms;
@@ -137,73 +229,157 @@ public final class FDBPostingsFormat extends PostingsFormat
         // Helpers
         //
 
+        /** Read a value written by {@link Util#writeLargeValue}, which is empty if there was none. */
+        private byte[] readLargeValue(Tuple baseTuple) {
+            List<KeyValue> values = Util.get(dir.txn.getRange(baseTuple.range()).asList());
+            if(values.size() == 1) {
+                return values.get(0).getValue();
+            }
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            for(KeyValue kv : values) {
+                os.write(kv.getValue(), 0, kv.getValue().length);
+            }
+            return os.toByteArray();
+        }
+
         private class FDBPostingsTerms extends FDBTermsBase
         {
             private final FieldInfo fieldInfo;
             private final Tuple fieldTuple;
+            private FST<Long> termsIndex;
+            private boolean loadedTermsIndex;
+            private FuzzySet bloomFilter;
+            private boolean loadedBloomFilter;
 
-            public FDBPostingsTerms(FieldInfo fieldInfo) {
+            /** <code>stats</code> is as written by {@link FDBTermsConsumer#finish}. */
+            public FDBPostingsTerms(FieldInfo fieldInfo, Tuple fieldTuple, Tuple stats) {
                 super(
+                        fieldInfo.getIndexOptions().compareTo(IndexOptions.DOCS_AND_FREQS) >= 0,
                         fieldInfo.getIndexOptions().compareTo(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS) >= 0,
                         fieldInfo.getIndexOptions().compareTo(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS_AND_OFFSETS) >= 0,
                         fieldInfo.hasPayloads(),
-                        -1,
-                        -1,
-                        -1
+                        stats.getLong(0),
+                        stats.getLong(1),
+                        stats.getLong(2),
+                        (int)stats.getLong(3)
                 );
                 this.fieldInfo = fieldInfo;
-                this.fieldTuple = segmentTuple.add(fieldInfo.number);
+                this.fieldTuple = fieldTuple;
             }
 
             @Override
-            public FDBTermsEnum iterator(TermsEnum reuse) {
-                return new FDBTermsEnum(fieldTuple, fieldInfo.getIndexOptions());
+            public FDBTermsEnum iterator(TermsEnum reuse) throws IOException {
+                return new FDBTermsEnum(this, fieldTuple, fieldInfo.getIndexOptions());
             }
 
             @Override
-            public long getSumTotalTermFreq() {
-                return -1;
-                //return fieldInfo.getIndexOptions() == IndexOptions.DOCS_ONLY ? -1 : sumTotalTermFreq;
+            public TermsEnum intersect(CompiledAutomaton compiled, BytesRef startTerm) throws IOException {
+                final FST<Long> termsIndex = getTermsIndex();
+                if(termsIndex == null) {
+                    return TermsEnum.EMPTY;
+                }
+                // Default intersect() over the index alone finds the matching terms in memory
+                Terms indexTerms = new FDBTermsBase(false, false, false, false, -1, -1, -1, -1)
+                {
+                    @Override
+                    public TermsEnum iterator(TermsEnum reuse) {
+                        return new FSTTermsEnum(termsIndex);
+                    }
+                };
+                TermsEnum matches = indexTerms.intersect(compiled, startTerm);
+                return new FDBIntersectTermsEnum(this, fieldTuple, fieldInfo.getIndexOptions(), matches);
             }
 
-			@Override
-			public boolean hasFreqs() {
-				return false;
-			}
+            synchronized long ramBytesUsed() {
+                long bytes = (termsIndex != null) ? termsIndex.sizeInBytes() : 0;
+                return bytes + ((bloomFilter != null) ? bloomFilter.ramBytesUsed() : 0);
+            }
+
+            /** Load the field's terms index on first use, or null if it has no terms. */
+            synchronized FST<Long> getTermsIndex() throws IOException {
+                if(!loadedTermsIndex) {
+                    byte[] value = readLargeValue(fieldTuple.add(TERMS_INDEX));
+                    if(value.length > 0) {
+                        termsIndex = new FST<Long>(new ByteArrayDataInput(value), PositiveIntOutputs.getSingleton());
+                    }
+                    loadedTermsIndex = true;
+                }
+                return termsIndex;
+            }
+
+            /** Load the field's Bloom filter on first use, or null if none was written. */
+            synchronized FuzzySet getBloomFilter() throws IOException {
+                if(!loadedBloomFilter) {
+                    byte[] value = readLargeValue(fieldTuple.add(BLOOM_FILTER));
+                    if(value.length > 0) {
+                        bloomFilter = FuzzySet.deserialize(new ByteArrayDataInput(value));
+                    }
+                    loadedBloomFilter = true;
+                }
+                return bloomFilter;
+            }
         }
 
+        /**
+         * Resolves seeks against the field's terms index, so that a missing term costs no read and any other costs
+         * a single point read of its entry. Enumeration streams the entries themselves. If the field has a Bloom
+         * filter, seekExact() consults it first so that most missing terms don't need the index at all.
+         */
         private class FDBTermsEnum extends TermsEnum
         {
+            private final FDBPostingsTerms terms;
             private final IndexOptions indexOptions;
             private final Tuple fieldTuple;
+            private final Tuple termsTuple;
+            private BytesRefFSTEnum<Long> termsIndexEnum;
+            /** Streams the terms following foundTerm, started by next() and dropped by any seek. */
+            private Iterator<KeyValue> termsIterator = null;
             private BytesRef foundTerm = null;
+            private long ord = -1;
             private int docFreq = -1;
+            private long totalTermFreq = -1;
+            private int blockCount = -1;
 
-            public FDBTermsEnum(Tuple fieldTuple, IndexOptions indexOptions) {
+            public FDBTermsEnum(FDBPostingsTerms terms, Tuple fieldTuple, IndexOptions indexOptions) {
+                this.terms = terms;
                 this.indexOptions = indexOptions;
                 this.fieldTuple = fieldTuple;
+                this.termsTuple = fieldTuple.add(TERMS);
             }
 
             @Override
-            public boolean seekExact(BytesRef text) {
-                return seekCeil(text) == SeekStatus.FOUND;
+            public boolean seekExact(BytesRef text) throws IOException {
+                termsIterator = null;
+                foundTerm = null;
+                FuzzySet bloomFilter = terms.getBloomFilter();
+                if(bloomFilter != null && bloomFilter.contains(text) == FuzzySet.ContainsResult.NO) {
+                    return false;
+                }
+                FST<Long> termsIndex = terms.getTermsIndex();
+                Long termOrd = (termsIndex != null) ? org.apache.lucene.util.fst.Util.get(termsIndex, text) : null;
+                if(termOrd == null) {
+                    return false;
+                }
+                readEntry(BytesRef.deepCopyOf(text), termOrd);
+                return true;
             }
 
             @Override
-            public SeekStatus seekCeil(BytesRef text) {
-                List<KeyValue> range = Util.get(dir.txn.getRange(fieldTuple.add(Util.copyRange(text)).pack(), fieldTuple.range().end, 1)
-                                          .asList());
-                if(range.isEmpty()) {
+            public SeekStatus seekCeil(BytesRef text) throws IOException {
+                termsIterator = null;
+                foundTerm = null;
+                FST<Long> termsIndex = terms.getTermsIndex();
+                if(termsIndex == null) {
                     return SeekStatus.END;
                 }
-
-                Tuple t = Tuple.fromBytes(range.get(0).getKey());
-                byte[] term = t.getBytes(fieldTuple.size()).clone();
-                foundTerm = new BytesRef(term);
-
-                // Note: Delicate, NUM_DOCS key sorts first
-                docFreq = (int)Util.unpackLittleEndianLong(range.get(0).getValue());
-
+                if(termsIndexEnum == null) {
+                    termsIndexEnum = new BytesRefFSTEnum<Long>(termsIndex);
+                }
+                BytesRefFSTEnum.InputOutput<Long> ceil = termsIndexEnum.seekCeil(text);
+                if(ceil == null) {
+                    return SeekStatus.END;
+                }
+                readEntry(BytesRef.deepCopyOf(ceil.input), ceil.output);
                 if(foundTerm.equals(text)) {
                     return SeekStatus.FOUND;
                 } else {
@@ -212,14 +388,46 @@ public final class FDBPostingsFormat extends PostingsFormat
             }
 
             @Override
-            public BytesRef next() {
-                if(foundTerm == null) {
-                    foundTerm = new BytesRef();
-                } else {
-                    foundTerm.append(new BytesRef(new byte[]{ 0 }));
+            public BytesRef next() throws IOException {
+                if(termsIterator == null) {
+                    byte[] begin = (foundTerm == null) ?
+                            termsTuple.range().begin :
+                            ByteArrayUtil.join(termsTuple.add(Util.copyRange(foundTerm)).pack(), new byte[]{ 0 });
+                    termsIterator = dir.txn.getRange(begin, termsTuple.range().end).iterator();
+                }
+                if(!termsIterator.hasNext()) {
+                    foundTerm = null;
+                    return null;
                 }
-                SeekStatus status = seekCeil(foundTerm);
-                return (status == SeekStatus.END) ? null : term();
+                // Ordinals are dense and in term order
+                setFoundTerm(termsIterator.next(), ord + 1);
+                return foundTerm;
+            }
+
+            private void readEntry(BytesRef term, long termOrd) {
+                byte[] value = Util.get(dir.txn.get(getTermKey(term)));
+                assert value != null : term;
+                setFoundTerm(term, value, termOrd);
+            }
+
+            /** Key of the entry of <code>term</code>. */
+            byte[] getTermKey(BytesRef term) {
+                return termsTuple.add(Util.copyRange(term)).pack();
+            }
+
+            /** Position on the term of an entry read from the database. */
+            void setFoundTerm(KeyValue termKV, long termOrd) {
+                BytesRef term = new BytesRef(Tuple.fromBytes(termKV.getKey()).getBytes(termsTuple.size()));
+                setFoundTerm(term, termKV.getValue(), termOrd);
+            }
+
+            private void setFoundTerm(BytesRef term, byte[] entry, long termOrd) {
+                foundTerm = term;
+                ord = termOrd;
+                Tuple value = Tuple.fromBytes(entry);
+                docFreq = (int)value.getLong(0);
+                totalTermFreq = value.getLong(1);
+                blockCount = (int)value.getLong(2);
             }
 
             @Override
@@ -230,12 +438,24 @@ public final class FDBPostingsFormat extends PostingsFormat
 
             @Override
             public long ord() {
-                throw new UnsupportedOperationException();
+                assert foundTerm != null;
+                return ord;
             }
 
+            /** Find the term in the terms index, as ordinals are its outputs, then read its entry. */
             @Override
-            public void seekExact(long ord) {
-                throw new UnsupportedOperationException();
+            public void seekExact(long ord) throws IOException {
+                termsIterator = null;
+                foundTerm = null;
+                FST<Long> termsIndex = terms.getTermsIndex();
+                IntsRef term = null;
+                if(termsIndex != null) {
+                    term = org.apache.lucene.util.fst.Util.getByOutput(termsIndex, ord);
+                }
+                if(term == null) {
+                    throw new IllegalArgumentException("No term with ord: " + ord);
+                }
+                readEntry(org.apache.lucene.util.fst.Util.toBytesRef(term, new BytesRef()), ord);
             }
 
             @Override
@@ -245,15 +465,12 @@ public final class FDBPostingsFormat extends PostingsFormat
 
             @Override
             public long totalTermFreq() {
-                return -1;
-                //return indexOptions == IndexOptions.DOCS_ONLY ? -1 : totalTermFreq;
+                return totalTermFreq;
             }
 
             @Override
             public FDBDocsAndPositionsEnum docs(Bits liveDocs, DocsEnum reuse, int flags) {
-                // TODO: Reuse?
-                Tuple termTuple = fieldTuple.add(Util.copyRange(foundTerm));
-                return new FDBDocsAndPositionsEnum(termTuple, liveDocs, indexOptions, docFreq);
+                return newEnum(liveDocs, false);
             }
 
             @Override
@@ -262,7 +479,163 @@ public final class FDBPostingsFormat extends PostingsFormat
                     // Positions were not indexed
                     return null;
                 }
-                return docs(liveDocs, reuse, flags);
+                return newEnum(liveDocs, true);
+            }
+
+            private FDBDocsAndPositionsEnum newEnum(Bits liveDocs, boolean withPositions) {
+                // TODO: Reuse?
+                Tuple termTuple = fieldTuple.add(Util.copyRange(foundTerm));
+                return new FDBDocsAndPositionsEnum(termTuple,
+                                                   liveDocs,
+                                                   indexOptions,
+                                                   withPositions,
+                                                   docFreq,
+                                                   blockCount);
+            }
+
+            @Override
+            public Comparator<BytesRef> getComparator() {
+                return BytesRef.getUTF8SortedAsUnicodeComparator();
+            }
+        }
+
+        /**
+         * Enumerates the terms accepted by an automaton. Matching is done in memory, against the terms index, and
+         * the entries of the next {@link #INTERSECT_BATCH_SIZE} matches are then read concurrently, one bounded range
+         * read per run of consecutive terms. Seeking is not supported.
+         */
+        private class FDBIntersectTermsEnum extends FDBTermsEnum
+        {
+            private final TermsEnum matches;
+            private final ArrayDeque<KeyValue> entries = new ArrayDeque<KeyValue>();
+            private final ArrayDeque<Long> entryOrds = new ArrayDeque<Long>();
+            private boolean exhausted;
+
+            public FDBIntersectTermsEnum(FDBPostingsTerms terms,
+                                         Tuple fieldTuple,
+                                         IndexOptions indexOptions,
+                                         TermsEnum matches) {
+                super(terms, fieldTuple, indexOptions);
+                this.matches = matches;
+            }
+
+            @Override
+            public BytesRef next() throws IOException {
+                if(entries.isEmpty() && !readBatch()) {
+                    return null;
+                }
+                setFoundTerm(entries.poll(), entryOrds.poll());
+                return term();
+            }
+
+            private boolean readBatch() throws IOException {
+                List<CompletableFuture<List<KeyValue>>> runs = new ArrayList<CompletableFuture<List<KeyValue>>>();
+                byte[] runBegin = null;
+                byte[] runEnd = null;
+                long runEndOrd = -1;
+                for(int i = 0; i < INTERSECT_BATCH_SIZE && !exhausted; ++i) {
+                    BytesRef term = matches.next();
+                    if(term == null) {
+                        exhausted = true;
+                        break;
+                    }
+                    long termOrd = matches.ord();
+                    byte[] key = getTermKey(term);
+                    if(runBegin != null && termOrd != runEndOrd + 1) {
+                        runs.add(dir.txn.getRange(runBegin, ByteArrayUtil.join(runEnd, new byte[]{ 0 })).asList());
+                        runBegin = null;
+                    }
+                    if(runBegin == null) {
+                        runBegin = key;
+                    }
+                    runEnd = key;
+                    runEndOrd = termOrd;
+                    entryOrds.add(termOrd);
+                }
+                if(runBegin != null) {
+                    runs.add(dir.txn.getRange(runBegin, ByteArrayUtil.join(runEnd, new byte[]{ 0 })).asList());
+                }
+                for(CompletableFuture<List<KeyValue>> run : runs) {
+                    entries.addAll(Util.get(run));
+                }
+                assert entries.size() == entryOrds.size();
+                return !entries.isEmpty();
+            }
+
+            @Override
+            public boolean seekExact(BytesRef text) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public SeekStatus seekCeil(BytesRef text) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public void seekExact(long ord) {
+                throw new UnsupportedOperationException();
+            }
+        }
+
+        /** Enumerates the terms index alone, without statistics, for matching terms in memory. */
+        private static class FSTTermsEnum extends TermsEnum
+        {
+            private final BytesRefFSTEnum<Long> fstEnum;
+            private BytesRefFSTEnum.InputOutput<Long> current;
+
+            public FSTTermsEnum(FST<Long> fst) {
+                this.fstEnum = new BytesRefFSTEnum<Long>(fst);
+            }
+
+            @Override
+            public BytesRef next() throws IOException {
+                current = fstEnum.next();
+                return (current != null) ? current.input : null;
+            }
+
+            @Override
+            public SeekStatus seekCeil(BytesRef text) throws IOException {
+                current = fstEnum.seekCeil(text);
+                if(current == null) {
+                    return SeekStatus.END;
+                }
+                return current.input.equals(text) ? SeekStatus.FOUND : SeekStatus.NOT_FOUND;
+            }
+
+            @Override
+            public void seekExact(long ord) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public BytesRef term() {
+                return current.input;
+            }
+
+            @Override
+            public long ord() {
+                return current.output;
+            }
+
+            @Override
+            public int docFreq() {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public long totalTermFreq() {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public DocsEnum docs(Bits liveDocs, DocsEnum reuse, int flags) {
+                throw new UnsupportedOperationException();
+            }
+
+            @Override
+            public DocsAndPositionsEnum docsAndPositions(Bits liveDocs, DocsAndPositionsEnum reuse, int flags) {
+                throw new UnsupportedOperationException();
             }
 
             @Override
@@ -271,29 +644,59 @@ public final class FDBPostingsFormat extends PostingsFormat
             }
         }
 
+        /**
+         * Iterates the blocks of a term, each <code>(firstDoc, offset) => bytes</code>, decoding one document at a
+         * time. The positions of the blocks, <code>("pos", firstDoc, offset) => bytes</code>, are streamed by a
+         * second iterator, only started once {@link #nextPosition()} is first called, that follows the first one
+         * block by block. See {@link FDBPostingsConsumer} for the block encoding.
+         */
         private class FDBDocsAndPositionsEnum extends DocsAndPositionsEnum
         {
             private final Tuple termTuple;
+            private final boolean readFreqs;
             private final boolean readOffsets;
             private final boolean readPositions;
             private final Bits liveDocs;
             private final int docFreq;
+            private final int blockCount;
+            private final ByteArrayDataInput blockIn = new ByteArrayDataInput();
+            private final ByteArrayDataInput positionsIn = new ByteArrayDataInput();
             private Iterator<KeyValue> termIterator;
+            private KeyValue nextBlockKV;
+            private Iterator<KeyValue> positionsIterator;
+            private KeyValue nextPositionsKV;
+            /** First doc ID positionsIterator starts from when it is next needed. */
+            private long positionsStartDocID;
+            private int blockFirstDocID;
+            private boolean positionsLoaded;
+            /** Positions in the current block, before those of the current document, not yet read. */
+            private int positionsToSkip;
+            private int blockDocID;
             private int docID;
             private int termDocFreq;
+            private int positionsLeft;
+            private int position;
             private int startOffset;
             private int endOffset;
             private BytesRef payload;
 
 
-            public FDBDocsAndPositionsEnum(Tuple termTuple, Bits liveDocs, IndexOptions options, int docFreq) {
+            public FDBDocsAndPositionsEnum(Tuple termTuple,
+                                           Bits liveDocs,
+                                           IndexOptions options,
+                                           boolean withPositions,
+                                           int docFreq,
+                                           int blockCount) {
                 this.termTuple = termTuple;
-                this.readPositions = options.compareTo(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS) >= 0;
+                this.readFreqs = options != IndexOptions.DOCS_ONLY;
+                this.readPositions = withPositions &&
+                                     options.compareTo(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS) >= 0;
                 this.readOffsets = options.compareTo(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS_AND_OFFSETS) >= 0;
                 this.liveDocs = liveDocs;
                 this.docFreq = docFreq;
+                this.blockCount = blockCount;
 
-                this.termIterator =dir.txn.getRange(termTuple.add(0).pack(), termTuple.range().end).iterator();
+                this.termIterator = dir.txn.getRange(termTuple.add(0).pack(), termTuple.range().end).iterator();
                 this.docID = -1;
                 if(!readOffsets) {
                     startOffset = endOffset = -1;
@@ -315,29 +718,143 @@ public final class FDBPostingsFormat extends PostingsFormat
                 if(docID == NO_MORE_DOCS) {
                     return docID;
                 }
+                for(;;) {
+                    positionsToSkip += positionsLeft;
+                    if(blockIn.eof() && !readBlock()) {
+                        docID = NO_MORE_DOCS;
+                        return docID;
+                    }
+                    blockDocID += blockIn.readVInt();
+                    termDocFreq = readFreqs ? blockIn.readVInt() : 1;
+                    positionsLeft = readPositions ? termDocFreq : 0;
+                    position = 0;
+                    startOffset = readOffsets ? 0 : -1;
+                    if(liveDocs == null || liveDocs.get(blockDocID)) {
+                        docID = blockDocID;
+                        return docID;
+                    }
+                }
+            }
 
-                docID = NO_MORE_DOCS;
-                while(termIterator.hasNext()) {
-                    KeyValue kv = termIterator.next();
-                    Tuple curTuple = Tuple.fromBytes(kv.getKey());
-                    if(curTuple.size() > (termTuple.size() + 1)) {
-                        // This is a position
-                        continue;
+            /** Load the positions of the current block and skip over those of preceding documents. */
+            private void readPositionsBlock() {
+                if(!positionsLoaded) {
+                    positionsIn.reset(readPositionsValue(blockFirstDocID));
+                    positionsLoaded = true;
+                }
+                for(; positionsToSkip > 0; --positionsToSkip) {
+                    positionsIn.readVInt();
+                    if(readOffsets) {
+                        positionsIn.readVInt();
+                        positionsIn.readVInt();
                     }
-                    int curDocID = (int)curTuple.getLong(termTuple.size());
-                    if(liveDocs == null || liveDocs.get(curDocID)) {
-                        docID = curDocID;
-                        Tuple valueTuple = Tuple.fromBytes(kv.getValue());
-                        termDocFreq = (valueTuple.size() > 0) ? (int)valueTuple.getLong(0) : -1;
+                    positionsIn.skipBytes(positionsIn.readVInt());
+                }
+            }
+
+            /**
+             * Move the positions stream to the block starting at <code>firstDocID</code>, passing over those of
+             * blocks whose positions weren't needed, and join the values it was split into.
+             */
+            private byte[] readPositionsValue(int firstDocID) {
+                if(positionsIterator == null) {
+                    Tuple positionsTuple = termTuple.add(POSITIONS);
+                    positionsIterator = dir.txn.getRange(positionsTuple.add(positionsStartDocID).pack(),
+                                                         positionsTuple.range().end).iterator();
+                }
+                ByteArrayOutputStream os = new ByteArrayOutputStream();
+                for(;;) {
+                    KeyValue kv = nextPositionsKV;
+                    nextPositionsKV = null;
+                    if(kv == null) {
+                        if(!positionsIterator.hasNext()) {
+                            break;
+                        }
+                        kv = positionsIterator.next();
+                    }
+                    long kvFirstDocID = Tuple.fromBytes(kv.getKey()).getLong(termTuple.size() + 1);
+                    if(kvFirstDocID > firstDocID) {
+                        nextPositionsKV = kv;
                         break;
                     }
+                    if(kvFirstDocID == firstDocID) {
+                        os.write(kv.getValue(), 0, kv.getValue().length);
+                    }
                 }
-                return docID;
+                return os.toByteArray();
+            }
+
+            /** Load the next block, joining the values it was split into, or return false if there are none. */
+            private boolean readBlock() {
+                KeyValue kv = nextBlockKV;
+                nextBlockKV = null;
+                if(kv == null) {
+                    if(!termIterator.hasNext()) {
+                        return false;
+                    }
+                    kv = termIterator.next();
+                }
+                long firstDocID = getFirstDocID(kv);
+                byte[] value = kv.getValue();
+                ByteArrayOutputStream os = null;
+                while(termIterator.hasNext()) {
+                    KeyValue next = termIterator.next();
+                    if(getFirstDocID(next) != firstDocID) {
+                        nextBlockKV = next;
+                        break;
+                    }
+                    if(os == null) {
+                        os = new ByteArrayOutputStream();
+                        os.write(value, 0, value.length);
+                    }
+                    os.write(next.getValue(), 0, next.getValue().length);
+                }
+                blockIn.reset((os != null) ? os.toByteArray() : value);
+                blockFirstDocID = blockDocID = (int)firstDocID;
+                positionsLoaded = false;
+                positionsToSkip = 0;
+                return true;
             }
 
+            private long getFirstDocID(KeyValue blockKV) {
+                return Tuple.fromBytes(blockKV.getKey()).getLong(termTuple.size());
+            }
+
+            /**
+             * Scan if the target is in the current block or not far past the start of the next. Otherwise, find the
+             * block holding the target with one reverse read of its last key and restart the iteration there.
+             */
             @Override
-            public int advance(int docIDTarget) throws IOException {
-                return slowAdvance(docIDTarget);
+            public int advance(int docIDTarget) {
+                // First doc ID that would be read by scanning from a block boundary, if currently at one
+                long scanFrom = -1;
+                if(nextBlockKV != null) {
+                    scanFrom = getFirstDocID(nextBlockKV);
+                } else if(docID == -1) {
+                    scanFrom = 0;
+                }
+                if(blockCount > 1 && scanFrom != -1 && (docIDTarget - scanFrom) >= SKIP_MIN_DOCS) {
+                    List<KeyValue> last = Util.get(
+                            dir.txn.getRange(termTuple.add(0).pack(), termTuple.add(docIDTarget + 1L).pack(), 1, true)
+                                   .asList()
+                    );
+                    long firstDocID = last.isEmpty() ? scanFrom : getFirstDocID(last.get(0));
+                    if(firstDocID > scanFrom) {
+                        termIterator = dir.txn.getRange(termTuple.add(firstDocID).pack(), termTuple.range().end)
+                                              .iterator();
+                        nextBlockKV = null;
+                        blockIn.reset(Util.EMPTY_BYTES);
+                        positionsLeft = 0;
+                        positionsIterator = null;
+                        nextPositionsKV = null;
+                        positionsStartDocID = firstDocID;
+                    }
+                }
+                int doc = docID;
+                while(doc < docIDTarget) {
+                    doc = nextDoc();
+                }
+                return doc;
             }
 
             @Override
@@ -346,28 +863,22 @@ public final class FDBPostingsFormat extends PostingsFormat
                     // We always have positions if offsets or payload was present. Could we return it then?
                     return -1;
                 }
-
-                // nextDoc has been called so termIterator should be pointing to the first position
-                assert termIterator.hasNext();
-
-                KeyValue kv = termIterator.next();
-                Tuple keyTuple = Tuple.fromBytes(kv.getKey());
-                Tuple valueTuple = Tuple.fromBytes(kv.getValue());
-
-                int position = (int)keyTuple.getLong(keyTuple.size() - 1);
-
+                assert positionsLeft > 0;
+                readPositionsBlock();
+                --positionsLeft;
+                position += positionsIn.readVInt();
                 if(readOffsets) {
-                    startOffset = (int)valueTuple.getLong(0);
-                    endOffset = (int)valueTuple.getLong(1);
+                    startOffset += positionsIn.readVInt();
+                    endOffset = startOffset + positionsIn.readVInt();
                 }
-
-                byte[] payloadBytes = valueTuple.getBytes(2);
-                if(payloadBytes != null) {
-                    payload = new BytesRef(payloadBytes.clone());
+                int payloadLength = positionsIn.readVInt();
+                if(payloadLength > 0) {
+                    payload = new BytesRef(payloadLength);
+                    positionsIn.readBytes(payload.bytes, 0, payloadLength);
+                    payload.length = payloadLength;
                 } else {
                     payload = null;
                 }
-
                 return position;
             }
 
@@ -393,8 +904,12 @@ public final class FDBPostingsFormat extends PostingsFormat
         }
 
 		@Override
-		public long ramBytesUsed() {
-			return 0;
+		synchronized public long ramBytesUsed() {
+			long bytes = 0;
+			for(FDBPostingsTerms terms : termsCache.values()) {
+				bytes += terms.ramBytesUsed();
+			}
+			return bytes;
 		}
     }
 
@@ -407,10 +922,15 @@ public final class FDBPostingsFormat extends PostingsFormat
     {
         private final FDBDirectory dir;
         private final Tuple segmentTuple;
+        private final Set<String> bloomFields;
+        private final int maxDoc;
 
-        public FDBFieldsConsumer(SegmentWriteState state) {
+        public FDBFieldsConsumer(SegmentWriteState state, Set<String> bloomFields) {
             this.dir = Util.unwrapDirectory(state.directory);
             this.segmentTuple = dir.subspace.add(state.segmentInfo.name).add(POSTINGS_EXT);
+            this.bloomFields = bloomFields;
+            this.maxDoc = state.segmentInfo.getDocCount();
+            Util.set(dir.txn, segmentTuple, FORMAT_VERSION_KEY, FORMAT_VERSION);
         }
 
         @Override
@@ -428,14 +948,29 @@ public final class FDBPostingsFormat extends PostingsFormat
         // Helpers
         //
 
+        /**
+         * Also builds the field's terms index, an FST mapping every term to its ordinal, and, if configured, a Bloom
+         * filter of its terms. Both are written in values of at most {@link #BLOCK_VALUE_SIZE}, under
+         * <code>("index")</code> and <code>("bloom")</code>, once all terms are added.
+         */
         private class FDBTermsConsumer extends TermsConsumer
         {
             private final FDBPostingsConsumer postingsConsumer;
             private final Tuple fieldTuple;
+            private final Builder<Long> termsIndexBuilder;
+            private final IntsRef scratchIntsRef = new IntsRef();
+            private final FuzzySet bloomFilter;
+            private long numTerms;
 
             public FDBTermsConsumer(FieldInfo field) {
                 this.postingsConsumer = new FDBPostingsConsumer(field);
                 this.fieldTuple = segmentTuple.add(field.number);
+                this.termsIndexBuilder = new Builder<Long>(FST.INPUT_TYPE.BYTE1, PositiveIntOutputs.getSingleton());
+                if(bloomFields.contains(field.name)) {
+                    this.bloomFilter = FuzzySet.createSetBasedOnQuality(maxDoc, BLOOM_TARGET_SATURATION);
+                } else {
+                    this.bloomFilter = null;
+                }
             }
 
             @Override
@@ -444,11 +979,39 @@ public final class FDBPostingsFormat extends PostingsFormat
             }
 
             @Override
-            public void finishTerm(BytesRef term, TermStats stats) {
+            public void finishTerm(BytesRef term, TermStats stats) throws IOException {
+                postingsConsumer.finishTerm(stats);
+                termsIndexBuilder.add(org.apache.lucene.util.fst.Util.toIntsRef(term, scratchIntsRef), numTerms++);
+                if(bloomFilter != null) {
+                    bloomFilter.addValue(term);
+                }
             }
 
+            /**
+             * Write the terms index, the Bloom filter and the field's statistics, <code>("stats") => (size,
+             * sumTotalTermFreq, sumDocFreq, docCount)</code>.
+             */
             @Override
-            public void finish(long sumTotalTermFreq, long sumDocFreq, int docCount) {
+            public void finish(long sumTotalTermFreq, long sumDocFreq, int docCount) throws IOException {
+                FST<Long> termsIndex = termsIndexBuilder.finish();
+                if(termsIndex != null) {
+                    GrowableByteArrayDataOutput out = new GrowableByteArrayDataOutput(1024);
+                    termsIndex.save(out);
+                    byte[] value = Arrays.copyOf(out.bytes, out.length);
+                    Util.writeLargeValue(dir.txn, fieldTuple.add(TERMS_INDEX), BLOCK_VALUE_SIZE, value);
+                }
+                if(bloomFilter != null && numTerms > 0 && bloomFilter.getSaturation() <= BLOOM_MAX_SATURATION) {
+                    // Null if already the smallest size that meets the target
+                    FuzzySet downsized = bloomFilter.downsize(BLOOM_TARGET_SATURATION);
+                    GrowableByteArrayDataOutput out = new GrowableByteArrayDataOutput(1024);
+                    ((downsized != null) ? downsized : bloomFilter).serialize(out);
+                    byte[] value = Arrays.copyOf(out.bytes, out.length);
+                    Util.writeLargeValue(dir.txn, fieldTuple.add(BLOOM_FILTER), BLOCK_VALUE_SIZE, value);
+                }
+                if(numTerms > 0) {
+                    Tuple stats = Tuple.from(numTerms, sumTotalTermFreq, sumDocFreq, docCount);
+                    Util.set(dir.txn, fieldTuple, FIELD_STATS, stats);
+                }
             }
 
             @Override
@@ -457,14 +1020,29 @@ public final class FDBPostingsFormat extends PostingsFormat
             }
         }
 
+        /**
+         * Buffers the documents of a term into blocks of up to {@link #BLOCK_SIZE}, each written under the first
+         * document it holds. Per document: <code>vInt docDelta</code> and <code>vInt freq</code> (unless
+         * DOCS_ONLY). If positions are indexed, a sibling block under <code>("pos", firstDoc)</code> holds, per
+         * document, <code>freq</code> times <code>vInt positionDelta</code>, <code>vInt startOffsetDelta, vInt
+         * offsetLength</code> (if offsets are indexed) and <code>vInt payloadLength, bytes payload</code>. Deltas
+         * start from zero within each block and document.
+         */
         private class FDBPostingsConsumer extends PostingsConsumer
         {
             private final IndexOptions indexOptions;
             private final boolean writePositions;
             private final boolean writeOffsets;
+            private final GrowableByteArrayDataOutput blockOut = new GrowableByteArrayDataOutput(1024);
+            private final GrowableByteArrayDataOutput positionsOut = new GrowableByteArrayDataOutput(1024);
             private Tuple termTuple = null;
-            private Tuple docTuple = null;
-            private boolean wroteNumDocs;
+            private byte[] termKey = null;
+            private int blockCount;
+            private int blockDocCount;
+            private int blockFirstDocID;
+            private int lastDocID;
+            private int lastPosition;
+            private int lastStartOffset;
 
 
             public FDBPostingsConsumer(FieldInfo field) {
@@ -475,41 +1053,79 @@ public final class FDBPostingsFormat extends PostingsFormat
 
             public FDBPostingsConsumer startTerm(BytesRef term, Tuple fieldTuple) {
                 this.termTuple = fieldTuple.add(Util.copyRange(term));
-                // Deferred, as term might have zero docs
-                wroteNumDocs = false;
+                this.termKey = fieldTuple.add(TERMS).add(Util.copyRange(term)).pack();
+                blockCount = 0;
+                blockDocCount = 0;
+                blockOut.length = 0;
+                positionsOut.length = 0;
                 return this;
             }
 
             @Override
-            public void startDoc(int docID, int termDocFreq) {
-                if(!wroteNumDocs) {
-                    dir.txn.set(termTuple.add(NUM_DOCS).pack(), LITTLE_ENDIAN_LONG_ONE);
-                    wroteNumDocs = true;
-                } else {
-                    dir.txn.mutate(MutationType.ADD, termTuple.add(NUM_DOCS).pack(), LITTLE_ENDIAN_LONG_ONE);
+            public void startDoc(int docID, int termDocFreq) throws IOException {
+                if(blockDocCount == BLOCK_SIZE ||
+                   blockOut.length >= BLOCK_MAX_BYTES ||
+                   positionsOut.length >= BLOCK_MAX_BYTES) {
+                    writeBlock();
                 }
-
-                docTuple = termTuple.add(docID);
-
-                Tuple valueTuple = new Tuple();
+                if(blockDocCount == 0) {
+                    blockFirstDocID = lastDocID = docID;
+                }
+                blockOut.writeVInt(docID - lastDocID);
                 if(indexOptions != IndexOptions.DOCS_ONLY) {
-                    valueTuple = valueTuple.add(termDocFreq);
+                    blockOut.writeVInt(termDocFreq);
                 }
-                dir.txn.set(docTuple.pack(), valueTuple.pack());
+                ++blockDocCount;
+                lastDocID = docID;
+                lastPosition = 0;
+                lastStartOffset = 0;
             }
 
             @Override
-            public void addPosition(int position, BytesRef payload, int startOffset, int endOffset) {
-                // If there is anything to write, just write it all (positions and offsets are tiny)
-                if(writePositions || writeOffsets || (payload != null && payload.length > 0)) {
-                    Tuple valueTuple = Tuple.from(startOffset, endOffset, Util.copyRange(payload));
-                    dir.txn.set(docTuple.add(position).pack(), valueTuple.pack());
+            public void addPosition(int position, BytesRef payload, int startOffset, int endOffset) throws IOException {
+                if(!writePositions) {
+                    return;
+                }
+                positionsOut.writeVInt(position - lastPosition);
+                lastPosition = position;
+                if(writeOffsets) {
+                    positionsOut.writeVInt(startOffset - lastStartOffset);
+                    positionsOut.writeVInt(endOffset - startOffset);
+                    lastStartOffset = startOffset;
+                }
+                if(payload != null && payload.length > 0) {
+                    positionsOut.writeVInt(payload.length);
+                    positionsOut.writeBytes(payload.bytes, payload.offset, payload.length);
+                } else {
+                    positionsOut.writeVInt(0);
                 }
             }
 
             @Override
             public void finishDoc() {
             }
+
+            /** Write the last block and the term's entry, <code>(docFreq, totalTermFreq, blockCount)</code>. */
+            public void finishTerm(TermStats stats) {
+                if(blockDocCount > 0) {
+                    writeBlock();
+                }
+                dir.txn.set(termKey, Tuple.from(stats.docFreq, stats.totalTermFreq, blockCount).pack());
+            }
+
+            private void writeBlock() {
+                byte[] value = Arrays.copyOf(blockOut.bytes, blockOut.length);
+                Util.writeLargeValue(dir.txn, termTuple.add(blockFirstDocID), BLOCK_VALUE_SIZE, value);
+                if(writePositions) {
+                    value = Arrays.copyOf(positionsOut.bytes, positionsOut.length);
+                    Tuple positionsTuple = termTuple.add(POSITIONS).add(blockFirstDocID);
+                    Util.writeLargeValue(dir.txn, positionsTuple, BLOCK_VALUE_SIZE, value);
+                }
+                ++blockCount;
+                blockDocCount = 0;
+                blockOut.length = 0;
+                positionsOut.length = 0;
+            }
         }
     }
 }
@@ -206,7 +206,7 @@ public class FDBTermVectorsFormat extends TermVectorsFormat
             final TVField field;
 
             public TVTerms(TVField field) {
-                super(field.hasPositions, field.hasOffsets, field.hasPayloads, field.numTerms, -1, 1);
+                super(false, field.hasPositions, field.hasOffsets, field.hasPayloads, field.numTerms, -1, -1, 1);
                 this.field = field;
             }
 
@@ -214,11 +214,6 @@ public class FDBTermVectorsFormat extends TermVectorsFormat
             public TermsEnum iterator(TermsEnum reuse) throws IOException {
                 return new TVTermsEnum(field);
             }
-
-			@Override
-			public boolean hasFreqs() {
-				return false;
-			}
         }
 
         /** Iterate in terms order over all terms for a single field. * */
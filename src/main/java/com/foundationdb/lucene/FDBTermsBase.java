@@ -30,23 +30,29 @@ import java.util.Comparator;
 
 public abstract class FDBTermsBase extends Terms
 {
+    private final boolean hasFreqs;
     private final boolean hasOffsets;
     private final boolean hasPositions;
     private final boolean hasPayloads;
     private final long size;
+    private final long sumTotalTermFreq;
     private final long sumDocFreq;
     private final int docCount;
 
-    public FDBTermsBase(boolean hasPositions,
+    public FDBTermsBase(boolean hasFreqs,
+                        boolean hasPositions,
                         boolean hasOffsets,
                         boolean hasPayloads,
                         long size,
+                        long sumTotalTermFreq,
                         long sumDocFeq,
                         int docCount) {
+        this.hasFreqs = hasFreqs;
         this.hasOffsets = hasOffsets;
         this.hasPositions = hasPositions;
         this.hasPayloads = hasPayloads;
         this.size = size;
+        this.sumTotalTermFreq = sumTotalTermFreq;
         this.sumDocFreq = sumDocFeq;
         this.docCount = docCount;
     }
@@ -63,7 +69,7 @@ public abstract class FDBTermsBase extends Terms
 
     @Override
     public long getSumTotalTermFreq() {
-        return -1;
+        return sumTotalTermFreq;
     }
 
     @Override
@@ -76,6 +82,11 @@ public abstract class FDBTermsBase extends Terms
         return docCount;
     }
 
+    @Override
+    public boolean hasFreqs() {
+        return hasFreqs;
+    }
+
     @Override
     public boolean hasOffsets() {
         return hasOffsets;
@@ -0,0 +1,160 @@
+/**
+ * FoundationDB Lucene Layer
+ * Copyright (c) 2013 FoundationDB, LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.foundationdb.lucene;
+
+import com.apple.foundationdb.KeyValue;
+import com.apple.foundationdb.MutationType;
+import com.apple.foundationdb.Transaction;
+import com.apple.foundationdb.tuple.Tuple;
+
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Windowed allocator of unique, small integers, as used by the FoundationDB directory layer.
+ *
+ * <p>
+ * Candidates are picked at random from a window that is advanced once half full. Only the counter of the
+ * current window is read, at snapshot isolation, so concurrent allocations conflict only if they pick the same
+ * candidate.
+ * </p>
+ *
+ * <p>
+ * Subspace: <code>("counters", long_windowStart) => (littleEndianLong_count)</code> and
+ * <code>("recent", long_candidate) => ()</code>. Callers may supply an additional range to check so that values
+ * in use from before the allocator existed are never handed out. The first window starts past the largest value
+ * found there, so a new allocator does not have to step over them one by one.
+ * </p>
+ */
+class HighContentionAllocator
+{
+    private static final byte[] LITTLE_ENDIAN_LONG_ONE = { 1, 0, 0, 0, 0, 0, 0, 0 };
+
+    private final Tuple counters;
+    private final Tuple recent;
+
+
+    public HighContentionAllocator(Tuple subspace) {
+        this.counters = subspace.add("counters");
+        this.recent = subspace.add("recent");
+    }
+
+    /** Allocate a value that is unique among all committed allocations and has no keys under <code>inUse</code>. */
+    public long allocate(Transaction txn, Tuple inUse) {
+        long windowStart = currentWindowStart(txn, inUse);
+        while(true) {
+            windowStart = chooseWindow(txn, windowStart);
+            long candidate = chooseCandidate(txn, windowStart, inUse);
+            if(candidate != -1) {
+                return candidate;
+            }
+            // Window was advanced by another allocation, or filled by values in use, try again from there
+            windowStart = currentWindowStart(txn, inUse);
+        }
+    }
+
+
+    //
+    // Helpers
+    //
+
+    private static long windowSize(long start) {
+        if(start < 255) {
+            return 64;
+        }
+        if(start < 65535) {
+            return 1024;
+        }
+        return 8192;
+    }
+
+    /** Count an allocation against the window at <code>windowStart</code>, advancing it while more than half full. */
+    private long chooseWindow(Transaction txn, long windowStart) {
+        long initialStart = windowStart;
+        while(true) {
+            byte[] counterKey = counters.add(windowStart).pack();
+            if(windowStart > initialStart) {
+                txn.clear(counters.range().begin, counterKey);
+                txn.options().setNextWriteNoWriteConflictRange();
+                txn.clear(recent.range().begin, recent.add(windowStart).pack());
+            }
+            txn.mutate(MutationType.ADD, counterKey, LITTLE_ENDIAN_LONG_ONE);
+            long count = Util.unpackLittleEndianLong(Util.get(txn.snapshot().get(counterKey)));
+            if((count * 2) < windowSize(windowStart)) {
+                return windowStart;
+            }
+            windowStart += windowSize(windowStart);
+        }
+    }
+
+    /**
+     * Pick random candidates from the window until a free one is found. Returns -1 if the window moved or, due to
+     * values found in use, is now at least half full.
+     */
+    private long chooseCandidate(Transaction txn, long windowStart, Tuple inUse) {
+        long window = windowSize(windowStart);
+        byte[] counterKey = counters.add(windowStart).pack();
+        while(true) {
+            long candidate = windowStart + ThreadLocalRandom.current().nextLong(window);
+            byte[] recentKey = recent.add(candidate).pack();
+            CompletableFuture<List<KeyValue>> latest = txn.snapshot().getRange(counters.range(), 1, true).asList();
+            CompletableFuture<byte[]> recentValue = txn.get(recentKey);
+            CompletableFuture<List<KeyValue>> inUseValue = txn.getRange(inUse.add(candidate).range(), 1).asList();
+            txn.options().setNextWriteNoWriteConflictRange();
+            txn.set(recentKey, Util.EMPTY_BYTES);
+
+            List<KeyValue> latestList = Util.get(latest);
+            if(!latestList.isEmpty() && Tuple.fromBytes(latestList.get(0).getKey()).getLong(counters.size()) > windowStart) {
+                return -1;
+            }
+            if(Util.get(recentValue) != null) {
+                continue;
+            }
+            if(Util.get(inUseValue).isEmpty()) {
+                txn.addWriteConflictKey(recentKey);
+                return candidate;
+            }
+            // In use from before the allocator, which never counted it. Count it now so the window can advance.
+            txn.mutate(MutationType.ADD, counterKey, LITTLE_ENDIAN_LONG_ONE);
+            long count = Util.unpackLittleEndianLong(Util.get(txn.snapshot().get(counterKey)));
+            if((count * 2) >= window) {
+                return -1;
+            }
+        }
+    }
+
+    /** Start of the latest window or, if none yet, of the first window past all values in <code>inUse</code>. */
+    private long currentWindowStart(Transaction txn, Tuple inUse) {
+        List<KeyValue> latest = Util.get(txn.snapshot().getRange(counters.range(), 1, true).asList());
+        if(!latest.isEmpty()) {
+            return Tuple.fromBytes(latest.get(0).getKey()).getLong(counters.size());
+        }
+        List<KeyValue> last = Util.get(txn.snapshot().getRange(inUse.range(), 1, true).asList());
+        if(last.isEmpty()) {
+            return 0;
+        }
+        return Tuple.fromBytes(last.get(0).getKey()).getLong(inUse.size()) + 1;
+    }
+}
@@ -106,6 +106,15 @@ public class Util
         return Arrays.copyOfRange(ref.bytes, ref.offset, ref.offset + ref.length);
     }
 
+    /** Convert the given long into a little-endian packed byte[8], e.g. for an ADD mutation. */
+    public static byte[] packLittleEndianLong(long value) {
+        byte[] packed = new byte[8];
+        for(int i = 0; i < 8; ++i) {
+            packed[i] = (byte)(value >>> (i * 8));
+        }
+        return packed;
+    }
+
     /** Convert the given little-endian packed byte[8] into a long. */
     public static long unpackLittleEndianLong(byte[] bytes) {
         if(bytes == null) {
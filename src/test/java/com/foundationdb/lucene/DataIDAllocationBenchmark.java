@@ -0,0 +1,124 @@
+/**
+ * FoundationDB Lucene Layer
+ * Copyright (c) 2013 FoundationDB, LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.foundationdb.lucene;
+
+import com.apple.foundationdb.Database;
+import com.apple.foundationdb.FDB;
+import com.apple.foundationdb.Transaction;
+import com.apple.foundationdb.tuple.Tuple;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexOutput;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Measures file creation throughput, i.e. segment flushes, as the number of concurrent writers grows. Each writer
+ * repeatedly creates a handful of small files in its own transaction against a shared directory.
+ *
+ * <p>Not run as part of the test suite: <code>java -cp ... com.foundationdb.lucene.DataIDAllocationBenchmark
+ * [seconds] [filesPerTxn]</code></p>
+ */
+public class DataIDAllocationBenchmark
+{
+    private static final int[] WRITER_COUNTS = { 1, 2, 4, 8, 16 };
+    private static final int FILE_SIZE = 4096;
+
+
+    public static void main(String[] args) throws Exception {
+        int seconds = (args.length > 0) ? Integer.parseInt(args[0]) : 10;
+        int filesPerTxn = (args.length > 1) ? Integer.parseInt(args[1]) : 10;
+        Database db = FDB.selectAPIVersion(Util.DEFAULT_API_VERSION).open();
+        final Tuple subspace = Tuple.from(Util.DEFAULT_TEST_ROOT_PREFIX, DataIDAllocationBenchmark.class.getSimpleName());
+        for(int writers : WRITER_COUNTS) {
+            db.run(
+                    new Function<Transaction, Void>()
+                    {
+                        @Override
+                        public Void apply(Transaction txn) {
+                            txn.clear(subspace.range());
+                            return null;
+                        }
+                    }
+            );
+            long files = run(db, subspace, writers, filesPerTxn, seconds * 1000L);
+            System.out.printf("writers=%2d files=%8d files/sec=%10.1f%n", writers, files, files * 1000.0 / (seconds * 1000));
+        }
+        db.close();
+    }
+
+    private static long run(final Database db,
+                            final Tuple subspace,
+                            int writers,
+                            final int filesPerTxn,
+                            long millis) throws InterruptedException {
+        final long endTime = System.currentTimeMillis() + millis;
+        final AtomicLong fileCount = new AtomicLong();
+        final AtomicInteger nameCounter = new AtomicInteger();
+        List<Thread> threads = new ArrayList<Thread>();
+        for(int i = 0; i < writers; ++i) {
+            threads.add(new Thread()
+            {
+                @Override
+                public void run() {
+                    final byte[] data = new byte[FILE_SIZE];
+                    while(System.currentTimeMillis() < endTime) {
+                        final int first = nameCounter.getAndAdd(filesPerTxn);
+                        db.run(
+                                new Function<Transaction, Void>()
+                                {
+                                    @Override
+                                    public Void apply(Transaction txn) {
+                                        FDBDirectory dir = new FDBDirectory(subspace, txn);
+                                        try {
+                                            for(int f = 0; f < filesPerTxn; ++f) {
+                                                IndexOutput out = dir.createOutput("_" + (first + f), IOContext.DEFAULT);
+                                                out.writeBytes(data, data.length);
+                                                out.close();
+                                            }
+                                        } catch(IOException e) {
+                                            throw new RuntimeException(e);
+                                        }
+                                        return null;
+                                    }
+                                }
+                        );
+                        fileCount.addAndGet(filesPerTxn);
+                    }
+                }
+            });
+        }
+        for(Thread t : threads) {
+            t.start();
+        }
+        for(Thread t : threads) {
+            t.join();
+        }
+        return fileCount.get();
+    }
+}
@@ -0,0 +1,88 @@
+/**
+ * FoundationDB Lucene Layer
+ * Copyright (c) 2013 FoundationDB, LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.foundationdb.lucene;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class FDBBlockCacheTest
+{
+    private static final byte[] FILE_A = { 1 };
+    private static final byte[] FILE_B = { 2 };
+
+    @Test
+    public void hitAndMiss() {
+        FDBBlockCache cache = new FDBBlockCache(1024);
+        assertNull(cache.get(FILE_A, 0));
+        cache.put(FILE_A, 0, new byte[]{ 5, 6, 7 });
+        assertArrayEquals(new byte[]{ 5, 6, 7 }, cache.get(FILE_A, 0));
+        assertNull(cache.get(FILE_A, 3));
+        assertNull(cache.get(FILE_B, 0));
+        assertEquals(1, cache.getHitCount());
+        assertEquals(3, cache.getMissCount());
+        assertEquals(3, cache.getUsedBytes());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        FDBBlockCache cache = new FDBBlockCache(200);
+        cache.put(FILE_A, 0, new byte[100]);
+        cache.put(FILE_A, 100, new byte[100]);
+        cache.get(FILE_A, 0);
+        cache.put(FILE_B, 0, new byte[100]);
+        assertEquals(1, cache.getEvictionCount());
+        assertEquals(200, cache.getUsedBytes());
+        assertNull(cache.get(FILE_A, 100));
+        assertEquals(100, cache.get(FILE_A, 0).length);
+    }
+
+    @Test
+    public void invalidate() {
+        FDBBlockCache cache = new FDBBlockCache(1024);
+        cache.put(FILE_A, 0, new byte[10]);
+        cache.put(FILE_A, 10, new byte[10]);
+        cache.put(FILE_B, 0, new byte[10]);
+        cache.invalidate(FILE_A);
+        assertNull(cache.get(FILE_A, 0));
+        assertNull(cache.get(FILE_A, 10));
+        assertEquals(10, cache.get(FILE_B, 0).length);
+        assertEquals(10, cache.getUsedBytes());
+    }
+
+    @Test
+    public void invalidateAfterEviction() {
+        FDBBlockCache cache = new FDBBlockCache(20);
+        cache.put(FILE_A, 0, new byte[10]);
+        cache.put(FILE_A, 10, new byte[10]);
+        cache.put(FILE_B, 0, new byte[10]);
+        cache.invalidate(FILE_A);
+        assertNull(cache.get(FILE_A, 10));
+        assertEquals(10, cache.getUsedBytes());
+        cache.put(FILE_A, 0, new byte[10]);
+        assertEquals(20, cache.getUsedBytes());
+    }
+}
@@ -0,0 +1,442 @@
+/**
+ * FoundationDB Lucene Layer
+ * Copyright (c) 2013 FoundationDB, LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.foundationdb.lucene;
+
+import com.apple.foundationdb.tuple.Tuple;
+import org.apache.lucene.store.Directory.IndexInputSlicer;
+import org.apache.lucene.store.FlushInfo;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.MergeInfo;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FDBDirectoryTest extends TestBase
+{
+    private static final String FILE_NAME = "file";
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void emptyFile() throws Exception {
+        FDBDirectory dir = createDirectoryForMethod();
+        writeFile(dir, new byte[0]);
+        IndexInput in = dir.openInput(FILE_NAME, IOContext.DEFAULT);
+        assertEquals(0, in.length());
+        in.close();
+    }
+
+    @Test
+    public void sequentialRead() throws Exception {
+        FDBDirectory dir = createDirectoryForMethod();
+        byte[] data = randomBytes(100000);
+        writeFile(dir, data);
+        IndexInput in = dir.openInput(FILE_NAME, IOContext.DEFAULT);
+        assertEquals(data.length, in.length());
+        byte[] read = new byte[data.length];
+        in.readBytes(read, 0, read.length);
+        assertArrayEquals(data, read);
+        assertEquals(data.length, in.getFilePointer());
+        in.close();
+    }
+
+    @Test
+    public void flushThenAppend() throws Exception {
+        FDBDirectory dir = createDirectoryForMethod();
+        byte[] data = randomBytes(5000);
+        IndexOutput out = dir.createOutput(FILE_NAME, IOContext.DEFAULT);
+        out.writeBytes(data, 0, 1500);
+        out.flush();
+        out.writeBytes(data, 1500, data.length - 1500);
+        out.close();
+        assertEquals(data.length, out.length());
+        IndexInput in = dir.openInput(FILE_NAME, IOContext.DEFAULT);
+        byte[] read = new byte[data.length];
+        in.readBytes(read, 0, read.length);
+        assertArrayEquals(data, read);
+        in.close();
+    }
+
+    @Test
+    public void fileLengthAndListWithSizes() throws Exception {
+        FDBDirectory dir = createDirectoryForMethod();
+        writeFile(dir, randomBytes(3000));
+        IndexOutput out = dir.createOutput("other", IOContext.DEFAULT);
+        out.writeBytes(randomBytes(10), 10);
+        out.close();
+        assertEquals(3000, dir.fileLength(FILE_NAME));
+        Map<String, Long> sizes = dir.listAllWithSizes();
+        assertEquals(2, sizes.size());
+        assertEquals(Long.valueOf(3000), sizes.get(FILE_NAME));
+        assertEquals(Long.valueOf(10), sizes.get("other"));
+    }
+
+    @Test
+    public void stagedOutput() throws Exception {
+        FDBDirectory dir = createDirectoryForMethod();
+        dir.setStagedWriteThreshold(0);
+        byte[] data = randomBytes(3 * 1024 * 1024);
+        IndexOutput out = dir.createOutput(FILE_NAME, new IOContext(new FlushInfo(1, data.length)));
+        out.writeBytes(data, data.length);
+        out.close();
+        assertEquals(data.length, dir.fileLength(FILE_NAME));
+        IndexInput in = dir.openInput(FILE_NAME, IOContext.DEFAULT);
+        byte[] read = new byte[data.length];
+        in.readBytes(read, 0, read.length);
+        assertArrayEquals(data, read);
+        in.close();
+    }
+
+    @Test
+    public void deleteAbandonedStagedFiles() throws Exception {
+        FDBDirectory dir = createDirectoryForMethod();
+        dir.setStagedWriteThreshold(0);
+        byte[] data = randomBytes(3 * 1024 * 1024);
+        IndexOutput out = dir.createOutput(FILE_NAME, new IOContext(new FlushInfo(1, data.length)));
+        long dataID = getDataID(dir, FILE_NAME);
+        out.writeBytes(data, data.length / 2);
+        // Too recent to be abandoned
+        dir.deleteAbandonedStagedFiles(TimeUnit.HOURS.toMillis(1));
+        assertTrue(hasData(dir, dataID));
+        dir.deleteAbandonedStagedFiles(0);
+        assertFalse(hasData(dir, dataID));
+        try {
+            out.writeBytes(data, data.length / 2, data.length / 2);
+            out.close();
+            fail("expected IOException");
+        } catch(IOException e) {
+            // Expected
+        }
+        assertFalse(hasData(dir, dataID));
+    }
+
+    @Test
+    public void mergeReadAhead() throws Exception {
+        FDBDirectory dir = createDirectoryForMethod();
+        byte[] data = randomBytes(3 * 1024 * 1024 + 10);
+        writeFile(dir, data);
+        IndexInput in = dir.openInput(FILE_NAME, new IOContext(new MergeInfo(1, data.length, false, 1)));
+        byte[] read = new byte[data.length];
+        for(int pos = 0; pos < read.length; pos += 100000) {
+            in.readBytes(read, pos, Math.min(100000, read.length - pos));
+        }
+        assertArrayEquals(data, read);
+        in.seek(12345);
+        assertEquals(data[12345], in.readByte());
+        in.close();
+    }
+
+    @Test
+    public void seekAndClone() throws Exception {
+        FDBDirectory dir = createDirectoryForMethod();
+        byte[] data = randomBytes(50000);
+        writeFile(dir, data);
+        IndexInput in = dir.openInput(FILE_NAME, IOContext.DEFAULT);
+        in.seek(40000);
+        assertEquals(data[40000], in.readByte());
+        IndexInput clone = in.clone();
+        assertEquals(40001, clone.getFilePointer());
+        clone.seek(7);
+        assertEquals(data[7], clone.readByte());
+        assertEquals(data[40001], in.readByte());
+        in.close();
+    }
+
+    @Test
+    public void slice() throws Exception {
+        FDBDirectory dir = createDirectoryForMethod();
+        byte[] data = randomBytes(20000);
+        writeFile(dir, data);
+        IndexInputSlicer slicer = dir.createSlicer(FILE_NAME, IOContext.DEFAULT);
+        IndexInput slice = slicer.openSlice("slice", 5000, 3000);
+        assertEquals(3000, slice.length());
+        byte[] read = new byte[3000];
+        slice.readBytes(read, 0, read.length);
+        assertArrayEquals(Arrays.copyOfRange(data, 5000, 8000), read);
+        slice.seek(10);
+        assertEquals(data[5010], slice.readByte());
+        slicer.close();
+    }
+
+    @Test
+    public void compressedChunks() throws Exception {
+        FDBDirectory dir = createDirectoryForMethod();
+        dir.setCompression(FDBDirectory.Compression.DEFLATE);
+        // Compressible first half, raw second half
+        byte[] data = randomBytes(300000);
+        Arrays.fill(data, 0, data.length / 2, (byte)'x');
+        IndexOutput out = dir.createOutput(FILE_NAME, IOContext.DEFAULT);
+        out.writeBytes(data, 70000);
+        out.flush();
+        assertEquals(70000, dir.fileLength(FILE_NAME));
+        out.writeBytes(data, 70000, data.length - 70000);
+        out.close();
+        assertEquals(data.length, dir.fileLength(FILE_NAME));
+        IndexInput in = dir.openInput(FILE_NAME, IOContext.DEFAULT);
+        byte[] read = new byte[data.length];
+        in.readBytes(read, 0, read.length);
+        assertArrayEquals(data, read);
+        in.seek(200000);
+        assertEquals(data[200000], in.readByte());
+        in.close();
+    }
+
+    @Test
+    public void copyAndRenameShareData() throws Exception {
+        FDBDirectory dir = createDirectoryForMethod();
+        byte[] data = randomBytes(5000);
+        writeFile(dir, data);
+        dir.copy(dir, FILE_NAME, "copy", IOContext.DEFAULT);
+        dir.renameFile(FILE_NAME, "renamed");
+        assertEquals(false, dir.fileExists(FILE_NAME));
+        dir.deleteFile("renamed");
+        assertReadAll(dir, "copy", data);
+        dir.copyFile("copy", "other");
+        dir.deleteFile("copy");
+        assertReadAll(dir, "other", data);
+        dir.deleteFile("other");
+        assertEquals(0, dir.listAll().length);
+    }
+
+    @Test
+    public void nameCacheSeesOtherWriters() throws Exception {
+        FDBDirectory dir = createDirectoryForMethod();
+        writeFile(dir, randomBytes(10));
+        dir.txn.commit().get();
+        dir.txn = testBaseDB.createTransaction();
+        assertEquals(true, dir.fileExists(FILE_NAME));
+
+        FDBDirectory other = createDirectoryForMethod();
+        other.txn = testBaseDB.createTransaction();
+        other.deleteFile(FILE_NAME);
+        other.txn.commit().get();
+
+        dir.txn = testBaseDB.createTransaction();
+        assertEquals(false, dir.fileExists(FILE_NAME));
+        assertEquals(0, dir.listAll().length);
+    }
+
+    @Test
+    public void commitGenerationWatch() throws Exception {
+        FDBDirectory dir = createDirectoryForMethod();
+        assertEquals(0, dir.getCommitGeneration());
+        writeFile(dir, randomBytes(10));
+        dir.txn.commit().get();
+        dir.txn = testBaseDB.createTransaction();
+        assertEquals(0, dir.getCommitGeneration());
+
+        CompletableFuture<Long> watch = dir.watchCommitGeneration(0);
+        assertEquals(false, watch.isDone());
+        IndexOutput out = dir.createOutput("segments_1", IOContext.DEFAULT);
+        out.writeInt(1);
+        out.close();
+        dir.txn.commit().get();
+        assertEquals(Long.valueOf(1), watch.get(10, TimeUnit.SECONDS));
+        dir.txn = testBaseDB.createTransaction();
+        assertEquals(1, dir.getCommitGeneration());
+    }
+
+    @Test
+    public void commitListenerWatchFailure() throws Exception {
+        final IllegalStateException failure = new IllegalStateException("watch failed");
+        FDBDirectory base = createDirectoryForMethod();
+        FDBDirectory dir = new FDBDirectory(base.subspace, base.txn)
+        {
+            @Override
+            public CompletableFuture<Long> watchCommitGeneration(long knownGeneration) {
+                CompletableFuture<Long> watch = new CompletableFuture<Long>();
+                watch.completeExceptionally(failure);
+                return watch.thenApply(
+                        new Function<Long, Long>()
+                        {
+                            @Override
+                            public Long apply(Long commitGeneration) {
+                                return commitGeneration;
+                            }
+                        }
+                );
+            }
+        };
+        final CompletableFuture<Throwable> reported = new CompletableFuture<Throwable>();
+        dir.addCommitListener(0, new FDBDirectory.CommitListener()
+        {
+            @Override
+            public boolean onCommit(long commitGeneration) {
+                reported.complete(null);
+                return false;
+            }
+
+            @Override
+            public void onError(Throwable error) {
+                reported.complete(error);
+            }
+        });
+        assertSame(failure, reported.get(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void deleteFilesWithSharedData() throws Exception {
+        FDBDirectory dir = createDirectoryForMethod();
+        byte[] data = randomBytes(100);
+        writeFile(dir, data);
+        dir.copyFile(FILE_NAME, "copy1");
+        dir.copyFile(FILE_NAME, "copy2");
+        IndexOutput out = dir.createOutput("other", IOContext.DEFAULT);
+        out.writeInt(1);
+        out.close();
+        dir.deleteFiles(Arrays.asList(FILE_NAME, "copy1", "other"));
+        assertArrayEquals(new String[]{ "copy2" }, dir.listAll());
+        assertReadAll(dir, "copy2", data);
+        dir.deleteFiles(Arrays.asList("copy2"));
+        assertEquals(0, dir.listAll().length);
+    }
+
+    @Test
+    public void deleteSharedAndUnsharedData() throws Exception {
+        FDBDirectory dir = createDirectoryForMethod();
+        byte[] data = randomBytes(100);
+        writeFile(dir, data);
+        IndexOutput out = dir.createOutput("other", IOContext.DEFAULT);
+        out.writeInt(1);
+        out.close();
+        long sharedID = getDataID(dir, FILE_NAME);
+        long unsharedID = getDataID(dir, "other");
+        dir.copyFile(FILE_NAME, "copy");
+        dir.renameFile("copy", "renamed");
+
+        dir.deleteFile("other");
+        assertEquals(false, hasData(dir, unsharedID));
+        dir.deleteFile(FILE_NAME);
+        assertEquals(true, hasData(dir, sharedID));
+        assertReadAll(dir, "renamed", data);
+        dir.deleteFile("renamed");
+        assertEquals(false, hasData(dir, sharedID));
+        assertEquals(0, dir.txn.getRange(dir.subspace.add(4).range()).asList().get().size());
+    }
+
+    @Test
+    public void legacyClosedEntry() throws Exception {
+        FDBDirectory dir = createDirectoryForMethod();
+        // Written before entries held more than the data ID
+        byte[] data = randomBytes(2500);
+        dir.txn.set(dir.subspace.add(0).add(FILE_NAME).pack(), Tuple.from(7).pack());
+        Util.writeLargeValue(dir.txn, dir.subspace.add(1).add(7), 1024, data);
+        assertEquals(data.length, dir.fileLength(FILE_NAME));
+
+        FDBBlockCache blockCache = new FDBBlockCache(1024 * 1024);
+        dir.setBlockCache(blockCache);
+        assertReadAll(dir, FILE_NAME, data);
+        assertReadAll(dir, FILE_NAME, data);
+        assertEquals(1, blockCache.getHitCount());
+
+        dir.copy(dir, FILE_NAME, "copy", IOContext.DEFAULT);
+        dir.renameFile(FILE_NAME, "renamed");
+        assertEquals(7, Tuple.fromBytes(Util.get(dir.txn.get(dir.subspace.add(0).add("copy").pack()))).getLong(0));
+        assertEquals(data.length, dir.fileLength("renamed"));
+        assertReadAll(dir, "renamed", data);
+
+        FDBLocalCache localCache = new FDBLocalCache(folder.getRoot(), 1024 * 1024);
+        dir.setLocalCache(localCache);
+        assertReadAll(dir, "copy", data);
+        assertEquals(data.length, localCache.getUsedBytes());
+        dir.deleteFile("renamed");
+        dir.deleteFile("copy");
+        assertEquals(0, dir.listAll().length);
+    }
+
+    @Test(timeout = 60000)
+    public void allocateAroundLegacyDataIDs() throws Exception {
+        FDBDirectory dir = createDirectoryForMethod();
+        // Data written by sequential allocation, before the windowed allocator, spans many windows
+        Tuple dataSubspace = dir.subspace.add(1);
+        byte[] legacyChunk = { 42 };
+        int legacyCount = 3000;
+        for(int dataID = 0; dataID < legacyCount; ++dataID) {
+            dir.txn.set(dataSubspace.add(dataID).add(0).pack(), legacyChunk);
+        }
+        for(int i = 0; i < 100; ++i) {
+            IndexOutput out = dir.createOutput("_" + i, IOContext.DEFAULT);
+            out.writeInt(i);
+            out.close();
+        }
+        for(int i = 0; i < 100; ++i) {
+            assertReadAll(dir, "_" + i, new byte[]{ 0, 0, 0, (byte)i });
+            assertTrue(getDataID(dir, "_" + i) >= legacyCount);
+        }
+        for(int dataID = 0; dataID < legacyCount; ++dataID) {
+            assertArrayEquals(legacyChunk, Util.get(dir.txn.get(dataSubspace.add(dataID).add(0).pack())));
+        }
+    }
+
+
+    //
+    // Helpers
+    //
+
+    private static byte[] randomBytes(int length) {
+        byte[] bytes = new byte[length];
+        new Random(length).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static void assertReadAll(FDBDirectory dir, String name, byte[] expected) throws Exception {
+        IndexInput in = dir.openInput(name, IOContext.DEFAULT);
+        byte[] read = new byte[(int)in.length()];
+        in.readBytes(read, 0, read.length);
+        assertArrayEquals(expected, read);
+        in.close();
+    }
+
+    private static long getDataID(FDBDirectory dir, String name) throws Exception {
+        return Tuple.fromBytes(dir.txn.get(dir.subspace.add(0).add(name).pack()).get()).getLong(0);
+    }
+
+    private static boolean hasData(FDBDirectory dir, long dataID) throws Exception {
+        return !dir.txn.getRange(dir.subspace.add(1).add(dataID).range()).asList().get().isEmpty();
+    }
+
+    private static void writeFile(FDBDirectory dir, byte[] data) throws Exception {
+        IndexOutput out = dir.createOutput(FILE_NAME, IOContext.DEFAULT);
+        out.writeBytes(data, data.length);
+        out.close();
+    }
+}
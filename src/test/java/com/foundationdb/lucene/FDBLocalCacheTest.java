@@ -0,0 +1,101 @@
+/**
+ * FoundationDB Lucene Layer
+ * Copyright (c) 2013 FoundationDB, LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.foundationdb.lucene;
+
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.RAMDirectory;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class FDBLocalCacheTest
+{
+    private static final byte[] FILE_A = { 1 };
+    private static final byte[] FILE_B = { 2 };
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private final RAMDirectory source = new RAMDirectory();
+
+    @Test
+    public void putAndRead() throws Exception {
+        FDBLocalCache cache = new FDBLocalCache(folder.getRoot(), 1024);
+        assertNull(cache.get(FILE_A));
+        String localName = cache.put(FILE_A, sourceInput(100));
+        assertEquals(localName, cache.get(FILE_A));
+        IndexInput in = cache.openInput(localName, IOContext.DEFAULT);
+        assertEquals(100, in.length());
+        in.seek(42);
+        assertEquals(42, in.readByte());
+        in.close();
+        assertEquals(100, cache.getUsedBytes());
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsed() throws Exception {
+        FDBLocalCache cache = new FDBLocalCache(folder.getRoot(), 200);
+        cache.put(FILE_A, sourceInput(100));
+        cache.put(FILE_B, sourceInput(150));
+        assertNull(cache.get(FILE_A));
+        assertNotNull(cache.get(FILE_B));
+        assertEquals(1, cache.getEvictionCount());
+        assertNull(cache.put(new byte[]{ 3 }, sourceInput(300)));
+    }
+
+    @Test
+    public void invalidateAndReopen() throws Exception {
+        FDBLocalCache cache = new FDBLocalCache(folder.getRoot(), 1024);
+        String localName = cache.put(FILE_A, sourceInput(10));
+        cache.put(FILE_B, sourceInput(20));
+        cache.invalidate(FILE_A);
+        assertNull(cache.get(FILE_A));
+        assertNull(cache.openInput(localName, IOContext.DEFAULT));
+        FDBLocalCache reopened = new FDBLocalCache(folder.getRoot(), 1024);
+        assertNull(reopened.get(FILE_A));
+        assertNotNull(reopened.get(FILE_B));
+        assertEquals(20, reopened.getUsedBytes());
+    }
+
+
+    //
+    // Helpers
+    //
+
+    private IndexInput sourceInput(int length) throws Exception {
+        String name = "source" + length;
+        IndexOutput out = source.createOutput(name, IOContext.DEFAULT);
+        for(int i = 0; i < length; ++i) {
+            out.writeByte((byte)i);
+        }
+        out.close();
+        return source.openInput(name, IOContext.DEFAULT);
+    }
+}
@@ -0,0 +1,532 @@
+/**
+ * FoundationDB Lucene Layer
+ * Copyright (c) 2013 FoundationDB, LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.foundationdb.lucene;
+
+import com.apple.foundationdb.tuple.Tuple;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.codecs.Codec;
+import org.apache.lucene.codecs.FilterCodec;
+import org.apache.lucene.codecs.PostingsFormat;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.DocsAndPositionsEnum;
+import org.apache.lucene.index.FieldInfo.IndexOptions;
+import org.apache.lucene.index.IndexFormatTooOldException;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.index.SegmentReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.FuzzyQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MultiTermQuery;
+import org.apache.lucene.search.RegexpQuery;
+import org.apache.lucene.search.TotalHitCountCollector;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.Version;
+import org.apache.lucene.util.automaton.CompiledAutomaton;
+import org.apache.lucene.util.automaton.LevenshteinAutomata;
+import org.apache.lucene.util.automaton.RegExp;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FDBPostingsFormatTest extends TestBase
+{
+    private static final String FIELD = "body";
+    private static final String COMMON_TERM = "common";
+    /** Enough documents containing {@link #COMMON_TERM} for advance() to skip several times. */
+    private static final int COMMON_DOC_COUNT = 5000;
+    /** Documents of the intersect tests, each with a unique term and one of {@link #GROUP_COUNT} shared ones. */
+    private static final int WORD_DOC_COUNT = 1000;
+    private static final int GROUP_COUNT = 50;
+    /** Documents of the statistics test, with a DOCS_ONLY {@link #ID_FIELD} and {@link #TAG_FIELD}. */
+    private static final int STATS_DOC_COUNT = 1000;
+    private static final String ID_FIELD = "id";
+    private static final String TAG_FIELD = "tag";
+
+    @Test
+    public void advanceAndPositions() throws Exception {
+        FDBDirectory dir = createDirectoryForMethod();
+        IndexWriter writer = new IndexWriter(dir, newConfig(new FDBCodec(FDBCodec.CONFIG_VALUE_DEFAULT)));
+        try {
+            for(int i = 0; i < COMMON_DOC_COUNT; ++i) {
+                addDocument(writer, commonDocText(i));
+            }
+        } finally {
+            writer.close();
+        }
+        DirectoryReader reader = DirectoryReader.open(dir);
+        try {
+            assertEquals(1, reader.leaves().size());
+            AtomicReader segment = reader.leaves().get(0).reader();
+            // Single steps read every block, larger ones scan past whole blocks or skip to the target's block
+            for(int step : new int[]{ 1, 7, 130, 300, 1500, 4000 }) {
+                DocsAndPositionsEnum postings = segment.termPositionsEnum(new Term(FIELD, COMMON_TERM));
+                int target = 0;
+                for(int i = 0; ; ++i) {
+                    int doc = (step == 1) ? postings.nextDoc() : postings.advance(target);
+                    assertEquals("step " + step + " to " + target, nextCommonDoc(target), doc);
+                    if(doc == DocIdSetIterator.NO_MORE_DOCS) {
+                        break;
+                    }
+                    // Leave some positions unread, which must be skipped over before the next document's
+                    assertPositions(doc, postings, ((i % 2) == 0) ? commonFreq(doc) : commonFreq(doc) / 2);
+                    target = doc + step;
+                }
+            }
+            DocsAndPositionsEnum postings = segment.termPositionsEnum(new Term(FIELD, COMMON_TERM));
+            assertEquals(DocIdSetIterator.NO_MORE_DOCS, postings.advance(DocIdSetIterator.NO_MORE_DOCS));
+        } finally {
+            reader.close();
+        }
+    }
+
+
+    @Test
+    public void termOrds() throws Exception {
+        FDBDirectory dir = createDirectoryForMethod();
+        writeWordDocs(dir, new FDBCodec(FDBCodec.CONFIG_VALUE_DEFAULT));
+        DirectoryReader reader = DirectoryReader.open(dir);
+        try {
+            Terms terms = reader.leaves().get(0).reader().terms(FIELD);
+            List<BytesRef> allTerms = new ArrayList<BytesRef>();
+            TermsEnum termsEnum = terms.iterator(null);
+            for(BytesRef term = termsEnum.next(); term != null; term = termsEnum.next()) {
+                assertEquals(allTerms.size(), termsEnum.ord());
+                allTerms.add(BytesRef.deepCopyOf(term));
+            }
+            assertEquals(terms.size(), allTerms.size());
+            for(int i = 0; i < allTerms.size(); i += 37) {
+                // Found, then the term sorting just after it, each followed by next()
+                assertEquals(TermsEnum.SeekStatus.FOUND, termsEnum.seekCeil(allTerms.get(i)));
+                assertEquals(i, termsEnum.ord());
+                assertNextOrd(allTerms, termsEnum, i + 1);
+                BytesRef after = BytesRef.deepCopyOf(allTerms.get(i));
+                after.append(new BytesRef(new byte[]{ 0 }));
+                TermsEnum.SeekStatus status = termsEnum.seekCeil(after);
+                if(i + 1 < allTerms.size()) {
+                    assertEquals(TermsEnum.SeekStatus.NOT_FOUND, status);
+                    assertEquals(allTerms.get(i + 1), termsEnum.term());
+                    assertEquals(i + 1, termsEnum.ord());
+                    assertNextOrd(allTerms, termsEnum, i + 2);
+                } else {
+                    assertEquals(TermsEnum.SeekStatus.END, status);
+                }
+            }
+            for(int i = allTerms.size() - 1; i >= 0; --i) {
+                termsEnum.seekExact(i);
+                assertEquals(allTerms.get(i), termsEnum.term());
+                assertEquals(i, termsEnum.ord());
+                assertEquals(TermsEnum.SeekStatus.FOUND, termsEnum.seekCeil(allTerms.get(i)));
+                assertEquals(i, termsEnum.ord());
+            }
+            termsEnum.seekExact(0);
+            assertNextOrd(allTerms, termsEnum, 1);
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void bloomFilter() throws Exception {
+        FDBDirectory dir = createDirectoryForMethod();
+        writeWordDocs(dir, bloomCodec());
+        DirectoryReader reader = DirectoryReader.open(dir);
+        try {
+            assertTrue(hasBloomFilter(dir, reader));
+            TermsEnum termsEnum = reader.leaves().get(0).reader().terms(FIELD).iterator(null);
+            for(int i = 0; i < WORD_DOC_COUNT; ++i) {
+                assertTrue(termsEnum.seekExact(new BytesRef("w" + i)));
+                assertEquals(1, termsEnum.docFreq());
+                assertFalse(termsEnum.seekExact(new BytesRef("x" + i)));
+            }
+            assertTrue(termsEnum.seekExact(new BytesRef("g0")));
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void saturatedBloomFilter() throws Exception {
+        FDBDirectory dir = createDirectoryForMethod();
+        // Far more terms than the filter is sized for from the document count
+        IndexWriter writer = new IndexWriter(dir, newConfig(bloomCodec()));
+        try {
+            for(int i = 0; i < 10; ++i) {
+                StringBuilder text = new StringBuilder();
+                for(int j = 0; j < 200; ++j) {
+                    text.append('w').append(i * 200 + j).append(' ');
+                }
+                addDocument(writer, text.toString());
+            }
+        } finally {
+            writer.close();
+        }
+        DirectoryReader reader = DirectoryReader.open(dir);
+        try {
+            assertFalse(hasBloomFilter(dir, reader));
+            TermsEnum termsEnum = reader.leaves().get(0).reader().terms(FIELD).iterator(null);
+            assertTrue(termsEnum.seekExact(new BytesRef("w1999")));
+            assertFalse(termsEnum.seekExact(new BytesRef("w2000")));
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void unversionedSegmentIsTooOld() throws Exception {
+        FDBDirectory dir = createDirectoryForMethod();
+        writeWordDocs(dir, new FDBCodec(FDBCodec.CONFIG_VALUE_DEFAULT));
+        DirectoryReader reader = DirectoryReader.open(dir);
+        String segmentName = ((SegmentReader)reader.leaves().get(0).reader()).getSegmentName();
+        reader.close();
+        // As written before postings were stored in blocks
+        dir.txn.clear(dir.subspace.add(segmentName).add(FDBPostingsFormat.POSTINGS_EXT)
+                          .add(FDBPostingsFormat.FORMAT_VERSION_KEY).pack());
+        try {
+            DirectoryReader.open(dir).close();
+            fail("expected IndexFormatTooOldException");
+        } catch(IndexFormatTooOldException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void regexpIntersect() throws Exception {
+        FDBDirectory dir = createDirectoryForMethod();
+        writeWordDocs(dir, new FDBCodec(FDBCodec.CONFIG_VALUE_DEFAULT));
+        RAMDirectory referenceDir = new RAMDirectory();
+        writeWordDocs(referenceDir, Codec.getDefault());
+        DirectoryReader reader = DirectoryReader.open(dir);
+        DirectoryReader referenceReader = DirectoryReader.open(referenceDir);
+        try {
+            Terms terms = reader.leaves().get(0).reader().terms(FIELD);
+            for(String regexp : new String[]{ "w1[0-9]*7", "g[0-4]?[05]", "[gw][0-9]*(12|34)", "x[0-9]+" }) {
+                CompiledAutomaton compiled = new CompiledAutomaton(new RegExp(regexp).toAutomaton());
+                assertIntersect(regexp, terms, compiled);
+                assertQueryHits(regexp, reader, referenceReader, new RegexpQuery(new Term(FIELD, regexp)));
+            }
+        } finally {
+            reader.close();
+            referenceReader.close();
+        }
+    }
+
+    @Test
+    public void fuzzyIntersect() throws Exception {
+        FDBDirectory dir = createDirectoryForMethod();
+        writeWordDocs(dir, new FDBCodec(FDBCodec.CONFIG_VALUE_DEFAULT));
+        RAMDirectory referenceDir = new RAMDirectory();
+        writeWordDocs(referenceDir, Codec.getDefault());
+        DirectoryReader reader = DirectoryReader.open(dir);
+        DirectoryReader referenceReader = DirectoryReader.open(referenceDir);
+        try {
+            Terms terms = reader.leaves().get(0).reader().terms(FIELD);
+            for(String text : new String[]{ "w123", "g17", "w9999" }) {
+                for(int edits = 1; edits <= LevenshteinAutomata.MAXIMUM_SUPPORTED_DISTANCE; ++edits) {
+                    String desc = text + "~" + edits;
+                    CompiledAutomaton compiled = new CompiledAutomaton(
+                            new LevenshteinAutomata(text, true).toAutomaton(edits), true, false
+                    );
+                    assertIntersect(desc, terms, compiled);
+                    FuzzyQuery query = new FuzzyQuery(new Term(FIELD, text), edits, 0, WORD_DOC_COUNT, true);
+                    query.setRewriteMethod(MultiTermQuery.CONSTANT_SCORE_FILTER_REWRITE);
+                    assertQueryHits(desc, reader, referenceReader, query);
+                }
+            }
+        } finally {
+            reader.close();
+            referenceReader.close();
+        }
+    }
+
+    @Test
+    public void statsMatchDefaultCodec() throws Exception {
+        FDBDirectory dir = createDirectoryForMethod();
+        RAMDirectory referenceDir = new RAMDirectory();
+        writeStatsDocs(dir, new FDBCodec(FDBCodec.CONFIG_VALUE_DEFAULT));
+        writeStatsDocs(referenceDir, Codec.getDefault());
+        assertEquals(10, assertSameStats("flushed", dir, referenceDir));
+        forceMerge(dir, new FDBCodec(FDBCodec.CONFIG_VALUE_DEFAULT));
+        forceMerge(referenceDir, Codec.getDefault());
+        assertEquals(1, assertSameStats("merged", dir, referenceDir));
+    }
+
+
+    //
+    // Helpers
+    //
+
+    private static IndexWriterConfig newConfig(Codec codec) {
+        IndexWriterConfig config = new IndexWriterConfig(Version.LUCENE_46, new WhitespaceAnalyzer(Version.LUCENE_46));
+        config.setCodec(codec);
+        // Everything in a single segment
+        config.setRAMBufferSizeMB(256);
+        return config;
+    }
+
+    /** As the default FDBCodec, which reads it back, but writing a Bloom filter for {@link #FIELD}. */
+    private static Codec bloomCodec() {
+        final PostingsFormat postings = new FDBPostingsFormat(Collections.singleton(FIELD));
+        return new FilterCodec(FDBCodec.class.getSimpleName(), new FDBCodec(FDBCodec.CONFIG_VALUE_DEFAULT))
+        {
+            @Override
+            public PostingsFormat postingsFormat() {
+                return postings;
+            }
+        };
+    }
+
+    private static boolean hasBloomFilter(FDBDirectory dir, DirectoryReader reader) {
+        SegmentReader segment = (SegmentReader)reader.leaves().get(0).reader();
+        Tuple bloomTuple = dir.subspace.add(segment.getSegmentName())
+                                       .add(FDBPostingsFormat.POSTINGS_EXT)
+                                       .add(segment.getFieldInfos().fieldInfo(FIELD).number)
+                                       .add(FDBPostingsFormat.BLOOM_FILTER);
+        return !Util.get(dir.txn.getRange(bloomTuple.range(), 1).asList()).isEmpty();
+    }
+
+    private static void addDocument(IndexWriter writer, String text) throws IOException {
+        Document doc = new Document();
+        doc.add(new TextField(FIELD, text, Field.Store.NO));
+        writer.addDocument(doc);
+    }
+
+    private static void writeWordDocs(Directory dir, Codec codec) throws IOException {
+        IndexWriter writer = new IndexWriter(dir, newConfig(codec));
+        try {
+            for(int i = 0; i < WORD_DOC_COUNT; ++i) {
+                addDocument(writer, "w" + i + " g" + (i % GROUP_COUNT));
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    /** Documents with a positional field and a tokenized DOCS_ONLY one, flushed into several unmerged segments. */
+    private static void writeStatsDocs(Directory dir, Codec codec) throws IOException {
+        FieldType tagType = new FieldType(TextField.TYPE_NOT_STORED);
+        tagType.setIndexOptions(IndexOptions.DOCS_ONLY);
+        tagType.freeze();
+        IndexWriterConfig config = newConfig(codec);
+        config.setMaxBufferedDocs(STATS_DOC_COUNT / 10);
+        config.setMergePolicy(NoMergePolicy.NO_COMPOUND_FILES);
+        IndexWriter writer = new IndexWriter(dir, config);
+        try {
+            for(int i = 0; i < STATS_DOC_COUNT; ++i) {
+                Document doc = new Document();
+                doc.add(new StringField(ID_FIELD, "id" + i, Field.Store.NO));
+                doc.add(new Field(TAG_FIELD, "t" + (i % 7) + " t" + (i % 3) + " t" + (i % 3), tagType));
+                String group = "g" + (i % GROUP_COUNT);
+                doc.add(new TextField(FIELD, "w" + i + " " + group + " " + group, Field.Store.NO));
+                writer.addDocument(doc);
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static void forceMerge(Directory dir, Codec codec) throws IOException {
+        IndexWriter writer = new IndexWriter(dir, newConfig(codec));
+        try {
+            writer.forceMerge(1);
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Check that every segment has the same field and term statistics as in the same index in another codec.
+     * Returns the number of segments.
+     */
+    private static int assertSameStats(String desc, Directory dir, Directory referenceDir) throws IOException {
+        DirectoryReader reader = DirectoryReader.open(dir);
+        DirectoryReader referenceReader = DirectoryReader.open(referenceDir);
+        try {
+            assertEquals(desc, referenceReader.leaves().size(), reader.leaves().size());
+            for(int i = 0; i < reader.leaves().size(); ++i) {
+                AtomicReader segment = reader.leaves().get(i).reader();
+                AtomicReader referenceSegment = referenceReader.leaves().get(i).reader();
+                for(String field : new String[]{ ID_FIELD, TAG_FIELD, FIELD }) {
+                    assertSameStats(desc + " " + i + " " + field, segment.terms(field), referenceSegment.terms(field));
+                }
+            }
+            return reader.leaves().size();
+        } finally {
+            reader.close();
+            referenceReader.close();
+        }
+    }
+
+    private static void assertSameStats(String desc, Terms terms, Terms referenceTerms) throws IOException {
+        assertEquals(desc, referenceTerms.size(), terms.size());
+        assertEquals(desc, referenceTerms.getSumTotalTermFreq(), terms.getSumTotalTermFreq());
+        assertEquals(desc, referenceTerms.getSumDocFreq(), terms.getSumDocFreq());
+        assertEquals(desc, referenceTerms.getDocCount(), terms.getDocCount());
+        assertEquals(desc, referenceTerms.hasFreqs(), terms.hasFreqs());
+        assertEquals(desc, referenceTerms.hasPositions(), terms.hasPositions());
+        TermsEnum termsEnum = terms.iterator(null);
+        TermsEnum referenceEnum = referenceTerms.iterator(null);
+        BytesRef term;
+        while((term = referenceEnum.next()) != null) {
+            assertEquals(desc, term, termsEnum.next());
+            assertEquals(desc + " " + term.utf8ToString(), referenceEnum.docFreq(), termsEnum.docFreq());
+            assertEquals(desc + " " + term.utf8ToString(), referenceEnum.totalTermFreq(), termsEnum.totalTermFreq());
+        }
+        assertNull(desc, termsEnum.next());
+    }
+
+    /**
+     * Check that intersect() finds the same terms, with the same ordinals and statistics, as walking every term
+     * and running the automaton on each. Both without a start term and from several, accepted or not.
+     */
+    private static void assertIntersect(String desc, Terms terms, CompiledAutomaton compiled) throws IOException {
+        assertEquals(desc, CompiledAutomaton.AUTOMATON_TYPE.NORMAL, compiled.type);
+        List<String> expected = walkTerms(terms, compiled, null);
+        assertEquals(desc, expected, describeTerms(terms.intersect(compiled, null)));
+        for(String startTerm : new String[]{ "g2", "g25", "w5", "w50", "w999" }) {
+            BytesRef startRef = new BytesRef(startTerm);
+            assertEquals(desc + " from " + startTerm,
+                         walkTerms(terms, compiled, startRef),
+                         describeTerms(terms.intersect(compiled, startRef)));
+        }
+        if(expected.size() > 2) {
+            // Start from an accepted term, which is itself excluded
+            BytesRef startRef = new BytesRef(expected.get(1).substring(0, expected.get(1).indexOf(':')));
+            assertEquals(desc + " from " + startRef.utf8ToString(),
+                         expected.subList(2, expected.size()),
+                         describeTerms(terms.intersect(compiled, startRef)));
+        }
+    }
+
+    private static List<String> walkTerms(Terms terms, CompiledAutomaton compiled, BytesRef startTerm)
+            throws IOException {
+        List<String> walked = new ArrayList<String>();
+        TermsEnum termsEnum = terms.iterator(null);
+        for(BytesRef term = termsEnum.next(); term != null; term = termsEnum.next()) {
+            boolean afterStart = (startTerm == null) || (term.compareTo(startTerm) > 0);
+            if(afterStart && compiled.runAutomaton.run(term.bytes, term.offset, term.length)) {
+                walked.add(describeTerm(termsEnum));
+            }
+        }
+        return walked;
+    }
+
+    private static List<String> describeTerms(TermsEnum termsEnum) throws IOException {
+        List<String> described = new ArrayList<String>();
+        while(termsEnum.next() != null) {
+            described.add(describeTerm(termsEnum));
+        }
+        return described;
+    }
+
+    private static String describeTerm(TermsEnum termsEnum) throws IOException {
+        return termsEnum.term().utf8ToString() + ":" + termsEnum.ord() + ":" + termsEnum.docFreq();
+    }
+
+    /** Check that <code>query</code> matches as many documents as it does in the same index in another codec. */
+    private static void assertQueryHits(String desc, DirectoryReader reader, DirectoryReader referenceReader,
+                                        MultiTermQuery query) throws IOException {
+        TotalHitCountCollector expected = new TotalHitCountCollector();
+        new IndexSearcher(referenceReader).search(query, expected);
+        TotalHitCountCollector actual = new TotalHitCountCollector();
+        new IndexSearcher(reader).search(query, actual);
+        assertEquals(desc, expected.getTotalHits(), actual.getTotalHits());
+    }
+
+    /** Check that next() moves to the term with <code>ord</code>, or to the end if there is none. */
+    private static void assertNextOrd(List<BytesRef> allTerms, TermsEnum termsEnum, int ord) throws IOException {
+        BytesRef term = termsEnum.next();
+        if(ord < allTerms.size()) {
+            assertEquals(allTerms.get(ord), term);
+            assertEquals(ord, termsEnum.ord());
+        } else {
+            assertNull(term);
+        }
+    }
+
+    private static boolean hasCommonTerm(int doc) {
+        return (doc % 3) != 2;
+    }
+
+    /** Up to 100 per document, so that the positions of a block are split over several values. */
+    private static int commonFreq(int doc) {
+        return 1 + (doc % 100);
+    }
+
+    private static int commonPositionGap(int doc) {
+        return 1 + (doc % 4);
+    }
+
+    private static String commonDocText(int doc) {
+        if(!hasCommonTerm(doc)) {
+            return "pad";
+        }
+        StringBuilder text = new StringBuilder();
+        for(int i = 0; i < commonFreq(doc); ++i) {
+            text.append(COMMON_TERM);
+            for(int j = 1; j < commonPositionGap(doc); ++j) {
+                text.append(" pad");
+            }
+            text.append(' ');
+        }
+        return text.toString();
+    }
+
+    private static int nextCommonDoc(int target) {
+        for(int doc = target; doc < COMMON_DOC_COUNT; ++doc) {
+            if(hasCommonTerm(doc)) {
+                return doc;
+            }
+        }
+        return DocIdSetIterator.NO_MORE_DOCS;
+    }
+
+    private static void assertPositions(int doc, DocsAndPositionsEnum postings, int count) throws IOException {
+        assertEquals("freq of " + doc, commonFreq(doc), postings.freq());
+        for(int i = 0; i < count; ++i) {
+            assertEquals("position " + i + " of " + doc, i * commonPositionGap(doc), postings.nextPosition());
+        }
+    }
+}
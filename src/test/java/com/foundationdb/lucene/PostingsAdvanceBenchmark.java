@@ -0,0 +1,154 @@
+/**
+ * FoundationDB Lucene Layer
+ * Copyright (c) 2013 FoundationDB, LLC
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package com.foundationdb.lucene;
+
+import com.apple.foundationdb.Database;
+import com.apple.foundationdb.FDB;
+import com.apple.foundationdb.Transaction;
+import com.apple.foundationdb.tuple.Tuple;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TotalHitCountCollector;
+import org.apache.lucene.util.Version;
+
+import java.io.IOException;
+import java.util.function.Function;
+
+/**
+ * Measures conjunctions of a term present in every document with terms of decreasing frequency, i.e. how much of
+ * the common term's postings {@link FDBPostingsFormat} can skip over.
+ *
+ * <p>Not run as part of the test suite: <code>java -cp ... com.foundationdb.lucene.PostingsAdvanceBenchmark
+ * [docs] [iterations]</code></p>
+ */
+public class PostingsAdvanceBenchmark
+{
+    private static final String FIELD = "f";
+    private static final int DOCS_PER_TXN = 5000;
+    /** Terms, other than common, and the interval of the documents they occur in. */
+    private static final String[] TERMS = { "half", "tenth", "rare", "sparse" };
+    private static final int[] INTERVALS = { 2, 10, 1000, 10000 };
+
+
+    public static void main(String[] args) throws Exception {
+        final int docs = (args.length > 0) ? Integer.parseInt(args[0]) : 100000;
+        final int iterations = (args.length > 1) ? Integer.parseInt(args[1]) : 20;
+        Database db = FDB.selectAPIVersion(Util.DEFAULT_API_VERSION).open();
+        final Tuple subspace = Tuple.from(Util.DEFAULT_TEST_ROOT_PREFIX,
+                                          PostingsAdvanceBenchmark.class.getSimpleName());
+        db.run(
+                new Function<Transaction, Void>()
+                {
+                    @Override
+                    public Void apply(Transaction txn) {
+                        txn.clear(subspace.range());
+                        return null;
+                    }
+                }
+        );
+        for(int start = 0; start < docs; start += DOCS_PER_TXN) {
+            final int first = start;
+            final int last = Math.min(docs, start + DOCS_PER_TXN);
+            db.run(
+                    new Function<Transaction, Void>()
+                    {
+                        @Override
+                        public Void apply(Transaction txn) {
+                            try {
+                                index(new FDBDirectory(subspace, txn), first, last);
+                            } catch(IOException e) {
+                                throw new RuntimeException(e);
+                            }
+                            return null;
+                        }
+                    }
+            );
+        }
+        for(final String term : TERMS) {
+            long nanos = db.run(
+                    new Function<Transaction, Long>()
+                    {
+                        @Override
+                        public Long apply(Transaction txn) {
+                            try {
+                                return search(new FDBDirectory(subspace, txn), term, iterations);
+                            } catch(IOException e) {
+                                throw new RuntimeException(e);
+                            }
+                        }
+                    }
+            );
+            System.out.printf("common AND %-6s ms/query=%8.2f%n", term, nanos / 1e6 / iterations);
+        }
+        db.close();
+    }
+
+    private static void index(FDBDirectory dir, int first, int last) throws IOException {
+        IndexWriterConfig config = new IndexWriterConfig(Version.LUCENE_46, new WhitespaceAnalyzer(Version.LUCENE_46));
+        config.setCodec(new FDBCodec());
+        IndexWriter writer = new IndexWriter(dir, config);
+        try {
+            for(int i = first; i < last; ++i) {
+                StringBuilder text = new StringBuilder("common");
+                for(int t = 0; t < TERMS.length; ++t) {
+                    if((i % INTERVALS[t]) == 0) {
+                        text.append(' ').append(TERMS[t]);
+                    }
+                }
+                Document doc = new Document();
+                doc.add(new TextField(FIELD, text.toString(), Field.Store.NO));
+                writer.addDocument(doc);
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static long search(FDBDirectory dir, String term, int iterations) throws IOException {
+        DirectoryReader reader = DirectoryReader.open(dir);
+        try {
+            IndexSearcher searcher = new IndexSearcher(reader);
+            BooleanQuery query = new BooleanQuery();
+            query.add(new TermQuery(new Term(FIELD, "common")), BooleanClause.Occur.MUST);
+            query.add(new TermQuery(new Term(FIELD, term)), BooleanClause.Occur.MUST);
+            long start = System.nanoTime();
+            for(int i = 0; i < iterations; ++i) {
+                searcher.search(query, new TotalHitCountCollector());
+            }
+            return System.nanoTime() - start;
+        } finally {
+            reader.close();
+        }
+    }
+}